@@ -2,15 +2,36 @@ package digitalgarden.selectfilesafx.selectfile;
 
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.util.Log;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.documentfile.provider.DocumentFile;
 
@@ -18,6 +39,44 @@ import static digitalgarden.selectfilesafx.selectfile.FileOperations.closeSilent
 
 public class AssetOperations
     {
+    // Generated at build time (check generateAssetManifest in build.gradle)
+    private static final String MANIFEST = "files.manifest";
+
+    // Sync state inside the target folder: "name TAB sha-256 TAB size TAB last modified" of
+    // each asset copied there. Target, which was not changed since, needs no copy.
+    static final String SYNC_STATE = ".assetsync";
+
+    // Assets copied at the same time
+    private static final int COPY_THREADS = 3;
+
+    /**
+     * Progress of copyAssets() - called on the worker threads!
+     */
+    public interface ProgressListener
+        {
+        /**
+         * @param assetName asset which was finished (copied, skipped or failed)
+         * @param done number of finished assets
+         * @param total number of assets
+         */
+        void onProgress( String assetName, int done, int total );
+        }
+
+    // Size and hash of an asset (manifest), or of a copied target (sync state)
+    private static class AssetRecord
+        {
+        final String hash;      // sha-256, null if not known (no manifest)
+        final long size;
+        final long lastModified; // of the target, 0 in the manifest
+
+        AssetRecord( String hash, long size, long lastModified )
+            {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+            }
+        }
+
     /**
      * http://stackoverflow.com/a/11212942 - copy asset folder
      * http://stackoverflow.com/a/6187097 - compressed files in assets
@@ -30,9 +89,31 @@ public class AssetOperations
      */
     public static void copyAssets(Context context, Uri targetUri ) throws IOException
         {
+        copyAssets( context, targetUri, null, null );
+        }
+
+    /**
+     * Copy assets from assets/files to targetUri - only the changed ones.
+     *
+     * Assets are listed by the manifest (size and hash of each asset), target folder is listed
+     * only once. Asset is skipped without reading it, if its hash is the same as in the sync
+     * state of the target folder, and target was not changed since the last copy (same size and
+     * last modification). Other assets are compared and copied by copyAssetFile() - by
+     * COPY_THREADS assets at the same time.
+     * Without manifest each asset is compared by copyAssetFile().
+     * @param context context
+     * @param targetUri treeUri of target folder, or null to copy to private folder
+     * @param signal copy can be cancelled by it (can be null) - OperationCanceledException is
+     *               thrown then, sync state of the finished assets is kept
+     * @param listener progress of the copy (can be null)
+     */
+    public static void copyAssets(Context context, Uri targetUri, CancellationSignal signal,
+                                  final ProgressListener listener ) throws IOException
+        {
         Log.i("ASSET", "Asset starts here");
+        final Context appContext = context.getApplicationContext();
 
-        DocumentFile targetFolder = FileOperations.getDocumentFileFromFolderUri(context, targetUri);
+        final DocumentFile targetFolder = FileOperations.getDocumentFileFromFolderUri(context, targetUri);
 
         if ( targetFolder == null )
             {
@@ -40,78 +121,352 @@ public class AssetOperations
             }
         Log.i("ASSET", "Target folder to copy assets " + targetFolder);
 
-        // Copying each file from assets
+        final Map<String, AssetRecord> manifest = readManifest( appContext );
+        if ( manifest.isEmpty() )
+            return;
+
+        // ONE listing of the target folder for all the assets: previous targets, sync state and
+        // backup names are all taken from it
+        DataFile targetData = toDataFile( appContext, targetFolder );
+        Map<String, DataFile> targets = listTargets( appContext, targetData, signal );
+        Map<String, AssetRecord> state = readSyncState( appContext, targets.get( SYNC_STATE ));
+        // Backup names come from the same listing
+        final BackupNames backupNames = new BackupNames( targets.keySet() );
+
+        final Map<String, AssetRecord> newState = new ConcurrentHashMap<>();
+        final List<String> changed = new ArrayList<>();
+        // uri of the previous target of each changed asset (null: no previous target)
+        final Map<String, Uri> previousUris = new HashMap<>();
+        for ( Map.Entry<String, AssetRecord> asset : manifest.entrySet() )
+            {
+            String name = asset.getKey();
+            AssetRecord synced = state.get( name );
+            DataFile target = targets.get( name );
+            if ( synced != null && asset.getValue().hash != null &&
+                    asset.getValue().hash.equals( synced.hash ) &&
+                    target != null && !target.isDirectory() &&
+                    target.length() == synced.size && target.lastModified() == synced.lastModified )
+                newState.put( name, synced ); // unchanged - asset is not read
+            else
+                {
+                changed.add( name );
+                previousUris.put( name, ( target == null ) ? null : uriOf( appContext, target ));
+                }
+            }
+        Log.i("ASSET", ( manifest.size() - changed.size() ) + " assets are unchanged, "
+                + changed.size() + " assets are checked");
+
+        final int total = manifest.size();
+        final AtomicInteger done = new AtomicInteger( total - changed.size() );
+        final CancellationSignal cancel = ( signal != null ) ? signal : new CancellationSignal();
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max( 1, Math.min( COPY_THREADS, changed.size() )));
+        List<Future<?>> futures = new ArrayList<>();
+        final List<String> copied = Collections.synchronizedList( new ArrayList<String>() );
         try
             {
-            String[] assetNames = context.getAssets().list("files");
-            for ( String assetName : assetNames )
+            for ( final String assetName : changed )
+                {
+                futures.add( executor.submit( new Runnable()
+                    {
+                    @Override
+                    public void run()
+                        {
+                        if ( cancel.isCanceled() )
+                            return;
+                        try
+                            {
+                            Log.i("ASSET", "Asset: " + assetName );
+                            if ( copyAssetFile( appContext, assetName, targetFolder,
+                                    previousUris.get( assetName ), backupNames, cancel ) != null )
+                                copied.add( assetName );
+                            }
+                        catch (IOException e)
+                            {
+                            Log.e("ASSET", "Cannot copy asset " + assetName + ": " + e );
+                            }
+                        catch (OperationCanceledException e)
+                            {
+                            // Partial target is not synced - it is checked again next time
+                            return;
+                            }
+                        if ( listener != null )
+                            listener.onProgress( assetName, done.incrementAndGet(), total );
+                        }
+                    } ));
+                }
+
+            for ( Future<?> future : futures )
+                {
+                try
+                    {
+                    future.get();
+                    }
+                catch ( ExecutionException e )
+                    {
+                    Log.e("ASSET", "Asset copy failed: " + e.getCause() );
+                    }
+                catch ( InterruptedException e )
+                    {
+                    Thread.currentThread().interrupt();
+                    cancel.cancel();
+                    break;
+                    }
+                }
+            }
+        finally
+            {
+            executor.shutdownNow();
+            }
+
+        // Copied targets are listed again (once), to know their new size and modification
+        DataFile stateFile = targets.get( SYNC_STATE );
+        if ( !copied.isEmpty() )
+            {
+            targets = listTargets( appContext, targetData, null );
+            for ( String name : copied )
                 {
-                Log.i("ASSET", "Asset: " + assetName );
-                copyAssetFile( context, assetName, targetFolder );
+                DataFile target = targets.get( name );
+                AssetRecord asset = manifest.get( name );
+                // Truncated target is not in sync - it is checked again next time
+                if ( target != null && asset.hash != null && target.length() == asset.size )
+                    newState.put( name, new AssetRecord( asset.hash, target.length(), target.lastModified() ));
+                else if ( target != null && asset.hash != null )
+                    Log.w("ASSET", "Size of " + name + " differs from the manifest, it is not synced");
                 }
             }
-        catch (IOException e)
+        writeSyncState( appContext, targetFolder, stateFile, newState );
+
+        if ( signal != null )
+            signal.throwIfCanceled();
+        }
+
+    /**
+     * Assets of the manifest; or the names of assets/files (without hash), if there is no
+     * manifest
+     */
+    private static Map<String, AssetRecord> readManifest( Context context )
+        {
+        Map<String, AssetRecord> manifest = new LinkedHashMap<>();
+        InputStream stream = null;
+        try
+            {
+            stream = context.getAssets().open( MANIFEST );
+            readRecords( stream, manifest );
+            return manifest;
+            }
+        catch ( IOException e )
+            {
+            Log.w("ASSET", "No asset manifest, each asset is compared");
+            }
+        finally
+            {
+            closeSilently( stream );
+            }
+
+        try
+            {
+            for ( String assetName : context.getAssets().list("files") )
+                manifest.put( assetName, new AssetRecord( null, 0L, 0L ));
+            }
+        catch ( IOException e )
             {
             Log.e("ASSET","Cannot read assets!");
             }
+        return manifest;
         }
 
+    // Sync state of the target folder (empty, if there is none)
+    private static Map<String, AssetRecord> readSyncState( Context context, DataFile stateFile )
+        {
+        Map<String, AssetRecord> state = new HashMap<>();
+        if ( stateFile == null )
+            return state;
+
+        InputStream stream = null;
+        try
+            {
+            stream = context.getContentResolver().openInputStream( stateFile.getUri( context ));
+            if ( stream != null )
+                readRecords( stream, state );
+            }
+        catch ( IOException | RuntimeException e )
+            {
+            Log.w("ASSET", "Sync state cannot be read, each asset is compared: " + e );
+            state.clear();
+            }
+        finally
+            {
+            closeSilently( stream );
+            }
+        return state;
+        }
 
-    public static void copyAssetFile(Context context, String assetName, DocumentFile targetFolder )
+    // Lines: "name TAB hash TAB size [TAB last modified]" (manifest: "name TAB size TAB hash")
+    private static void readRecords( InputStream stream, Map<String, AssetRecord> records )
             throws IOException
         {
+        BufferedReader reader = new BufferedReader( new InputStreamReader( stream, "UTF-8" ));
+        String line;
+        while ( (line = reader.readLine()) != null )
+            {
+            String[] parts = line.split( "\t" );
+            try
+                {
+                if ( parts.length == 3 ) // manifest
+                    records.put( parts[0], new AssetRecord( parts[2], Long.parseLong( parts[1] ), 0L ));
+                else if ( parts.length == 4 ) // sync state
+                    records.put( parts[0], new AssetRecord( parts[1], Long.parseLong( parts[2] ),
+                            Long.parseLong( parts[3] )));
+                }
+            catch ( NumberFormatException e )
+                {
+                Log.w("ASSET", "Wrong line is skipped: " + line );
+                }
+            }
+        }
+
+    // stateFile: sync state of the listing, or null if it should be created
+    private static void writeSyncState( Context context, DocumentFile targetFolder,
+                                        DataFile stateFile, Map<String, AssetRecord> state )
+        {
+        Uri stateUri;
+        if ( stateFile != null )
+            stateUri = uriOf( context, stateFile );
+        else
+            {
+            DocumentFile newStateFile = targetFolder.createFile( "text/x-unknown", SYNC_STATE );
+            if ( newStateFile == null )
+                {
+                Log.w("ASSET", "Sync state cannot be created");
+                return;
+                }
+            stateUri = newStateFile.getUri();
+            }
+
+        OutputStream stream = null;
+        try
+            {
+            stream = context.getContentResolver().openOutputStream( stateUri, "wt" );
+            if ( stream == null )
+                return;
+            Writer writer = new BufferedWriter( new OutputStreamWriter( stream, "UTF-8" ));
+            for ( Map.Entry<String, AssetRecord> record : state.entrySet() )
+                {
+                writer.write( record.getKey() + '\t' + record.getValue().hash + '\t' +
+                        record.getValue().size + '\t' + record.getValue().lastModified + '\n' );
+                }
+            writer.flush();
+            }
+        catch ( IOException | RuntimeException e )
+            {
+            Log.w("ASSET", "Sync state cannot be written: " + e );
+            }
+        finally
+            {
+            closeSilently( stream );
+            }
+        }
+
+    // DataFile of the target folder - private folder and File-s are listed directly
+    private static DataFile toDataFile( Context context, DocumentFile folder )
+        {
+        Uri uri = folder.getUri();
+        if ( "file".equals( uri.getScheme() ))
+            return new DataFile( new File( uri.getPath() ));
+        return new DataFile( folder );
+        }
+
+    // Uri of a listed target - file-uri for File-s (they are renamed as File-s)
+    private static Uri uriOf( Context context, DataFile target )
+        {
+        File file = target.getFile();
+        return ( file != null ) ? Uri.fromFile( file ) : target.getUri( context );
+        }
+
+    // Children of the target folder by name (with their attribute snapshot)
+    private static Map<String, DataFile> listTargets( Context context, DataFile folder,
+                                                      CancellationSignal signal )
+        {
+        final Map<String, DataFile> targets = new HashMap<>();
+        folder.listFiles( context, signal, DataFile.DEFAULT_BATCH_SIZE, new DataFile.BatchCallback()
+            {
+            @Override
+            public void onBatch( List<DataFile> batch )
+                {
+                for ( DataFile dataFile : batch )
+                    targets.put( dataFile.getName(), dataFile );
+                }
+            } );
+        return targets;
+        }
+
+
+    /**
+     * Copies one asset from assets/files into the target folder. If the target already exists
+     * and it differs from the asset, it is backed up (renamed to N_name) first.
+     * @param context context
+     * @param assetName name of the asset
+     * @param targetFolder folder to copy into
+     * @return uri of the target (identical, or newly copied), or null if asset was not copied
+     * @throws IOException if target cannot be read or written
+     */
+    public static Uri copyAssetFile(Context context, String assetName, DocumentFile targetFolder )
+            throws IOException
+        {
+        // Single asset: previous target is looked up now, folder is listed for backup names
+        // only if a backup is needed
+        Uri previousUri = DocumentPathResolver.get( context ).queryChild(
+                targetFolder.getUri(), assetName );
+        return copyAssetFile( context, assetName, targetFolder, previousUri, null, null );
+        }
+
+    /**
+     * Copies one asset (check copyAssetFile() above) with the data of a listing snapshot - the
+     * target folder is not listed again
+     * @param previousUri uri of the previous target, or null if there is no previous target
+     * @param backupNames backup names of the target folder, or null to list them when needed
+     * @param signal checked between blocks (can be null)
+     */
+    private static Uri copyAssetFile(Context context, String assetName, DocumentFile targetFolder,
+                                     Uri previousUri, BackupNames backupNames,
+                                     CancellationSignal signal ) throws IOException
+        {
         InputStream assetStream = null;
         InputStream previousStream = null;
         OutputStream targetStream = null;
+        BackupAndCopy backupAndCopy = null;
 
         try
             {
             assetStream = context.getAssets().open("files/" + assetName);
 
             // if target file already exists...
-            DocumentFile previousFile = targetFolder.findFile(assetName);
-            if (previousFile != null)
+            if (previousUri != null)
                 {
-                // compare these files
-                previousStream = context.getContentResolver().openInputStream(previousFile.getUri());
+                // compare these files - asset is read only once: at the first difference
+                // previous target is backed up, and the rest of the asset is copied
+                previousStream = context.getContentResolver().openInputStream(previousUri);
+                backupAndCopy = new BackupAndCopy( context, targetFolder, assetName, previousUri,
+                        previousStream, backupNames );
                 // ... and it is identical with asset - copy should stop
-                if (compareStreams(assetStream, previousStream))
+                if (StreamCopier.compareAndCopy(assetStream, previousStream, backupAndCopy, signal))
                     {
                     Log.e("ASSET",
                             "Asset and target files are identical, no copy is needed:" + assetName);
-                    return;
-                    }
-                // ... and it is not identical with asset - it should be backed up
-                else
-                    {
-                    String backupString;
-                    StringBuilder backupNameBuilder = new StringBuilder();
-                    int n = 0;
-                    do
-                        {
-                        backupNameBuilder.setLength(0);
-                        backupString = backupNameBuilder
-                                .append(n++)
-                                .append('_')
-                                .append(assetName).toString();
-                        } while (targetFolder.findFile(backupString) != null);
-                    previousFile.renameTo(backupString);
-                    Log.d("ASSET",
-                            "Target file with same name is backed up: " + backupString);
+                    return previousUri;
                     }
+                // ... and it is not identical with asset - it was backed up and copied
+                return backupAndCopy.targetUri;
                 }
 
-            // Create traget file to copy asset to
-            DocumentFile targetFile = targetFolder.createFile("text/x-unknown", assetName);
-
-            if (targetFile != null)
+            Uri targetUri = createTarget( context, targetFolder, assetName );
+            if (targetUri != null)
                 {
-                assetStream.reset();
-                targetStream = context.getContentResolver().openOutputStream(targetFile.getUri());
-                // Using text/plain mime type will add .txt extension; while text/x-unknown do not
-                // How to open these files, does it matter to have "unknown" mime type??
-
-                copyStreams(assetStream, targetStream);
+                targetStream = context.getContentResolver().openOutputStream(targetUri);
+                copyAsset(context, assetName, assetStream, targetStream, signal);
+                return targetUri;
                 }
             }
         catch (FileNotFoundException fnfe)
@@ -121,65 +476,165 @@ public class AssetOperations
         finally
             {
             closeSilently(targetStream);
+            if ( backupAndCopy != null )
+                closeSilently(backupAndCopy.targetStream);
             closeSilently(previousStream);
             closeSilently(assetStream);
             }
+        return null;
         }
 
+    /**
+     * Copies asset to target. Uncompressed assets are copied by the kernel, if target is a
+     * regular file (check StreamCopier); compressed ones through assetStream.
+     */
+    private static void copyAsset( Context context, String assetName, InputStream assetStream,
+                                   OutputStream targetStream, CancellationSignal signal )
+            throws IOException
+        {
+        AssetFileDescriptor assetDescriptor = null;
+        try
+            {
+            assetDescriptor = context.getAssets().openFd("files/" + assetName);
+            }
+        catch (FileNotFoundException compressed)
+            {
+            StreamCopier.copy(assetStream, targetStream, Long.MAX_VALUE, StreamCopier.cancelledBy(signal));
+            return;
+            }
+
+        try
+            {
+            StreamCopier.copy(assetDescriptor, targetStream, signal);
+            }
+        finally
+            {
+            closeSilently(assetDescriptor);
+            }
+        }
+
+    /**
+     * Creates an empty target file
+     * @return uri of the target, or null if it cannot be created
+     */
+    private static Uri createTarget( Context context, DocumentFile targetFolder, String assetName )
+        {
+        // Using text/plain mime type will add .txt extension; while text/x-unknown do not
+        // How to open these files, does it matter to have "unknown" mime type??
+        DocumentFile targetFile = targetFolder.createFile("text/x-unknown", assetName);
+        if (targetFile == null)
+            return null;
+        return targetFile.getUri();
+        }
 
     /**
-     * Compares two streams. The two streams are buffered.
-     * (BufferedInputStream would close InputStream behind it, so assetStream would be closed)
-     * @param streamA One stream
-     * @param streamB Other stream
-     * @return true, if streams are identical, false otherwise
-     * @throws IOException if reading error occurs
+     * Previous target differs from the asset: it is backed up (renamed to N_name), and the new
+     * target is created. Equal part of the asset is copied from the backup, so asset need not
+     * be read again.
      */
-    private static boolean compareStreams( InputStream streamA, InputStream streamB )
-        throws IOException
+    private static class BackupAndCopy implements StreamCopier.OnDifferenceListener
         {
-        byte[] bufferA = new byte[1024];
-        byte[] bufferB = new byte[1024];
+        private final Context context;
+        private final DocumentFile targetFolder;
+        private final String assetName;
+        private final Uri previousUri;
+        private final InputStream previousStream;
+        private final BackupNames backupNames;
 
-        int length;
-        do
+        Uri targetUri;
+        OutputStream targetStream;
+
+        BackupAndCopy( Context context, DocumentFile targetFolder, String assetName,
+                       Uri previousUri, InputStream previousStream, BackupNames backupNames )
             {
-            if ( (length = streamA.read(bufferA)) == streamB.read(bufferB) )
+            this.context = context;
+            this.targetFolder = targetFolder;
+            this.assetName = assetName;
+            this.previousUri = previousUri;
+            this.previousStream = previousStream;
+            this.backupNames = backupNames;
+            }
+
+        @Override
+        public OutputStream onDifference( long equalBytes ) throws IOException
+            {
+            closeSilently(previousStream);
+
+            BackupNames names = ( backupNames != null ) ? backupNames : new BackupNames(
+                    listTargets( context, toDataFile( context, targetFolder ), null ).keySet() );
+            String backupString = names.allocate( assetName );
+            Uri backupUri = DocumentPathResolver.get( context ).renameChild(previousUri, backupString);
+            if (backupUri == null)
+                throw new IOException("Target cannot be backed up: " + assetName);
+            Log.d("ASSET",
+                    "Target file with same name is backed up: " + backupString);
+
+            targetUri = createTarget( context, targetFolder, assetName );
+            if (targetUri == null)
+                throw new IOException("Target cannot be created: " + assetName);
+            targetStream = context.getContentResolver().openOutputStream(targetUri);
+            if (targetStream == null)
+                throw new IOException("Target cannot be opened: " + assetName);
+
+            // Equal part comes from the backup
+            if ( equalBytes > 0 )
                 {
-                while ( length > 0 )
+                InputStream backupStream = context.getContentResolver().openInputStream(backupUri);
+                try
                     {
-                    length--;
-                    if (bufferA[length] != bufferB[length])
-                        {
-                        return false;
-                        }
+                    if (backupStream == null ||
+                            StreamCopier.copy(backupStream, targetStream, equalBytes) != equalBytes)
+                        throw new IOException("Backup cannot be read: " + backupString);
+                    }
+                finally
+                    {
+                    closeSilently(backupStream);
                     }
                 }
-            else
-                {
-                return false;
-                }
-            } while ( length != -1 );
-
-        return true;
+            return targetStream;
+            }
         }
-
-
+    
     /**
-     * Copies inputStream to outputStream.
-     * @param inputStream input stream
-     * @param outputStream output stream
-     * @throws IOException if reading error occurs
+     * Backup names ("N_name") of a folder - allocated in O(1), without lookups.
+     * Names of ONE listing are scanned once, and the highest N is kept for each name: next
+     * backup gets N+1. (Gaps are not filled.) Allocated names are reserved, so parallel copies
+     * get different names.
      */
-    private static void copyStreams( InputStream inputStream, OutputStream outputStream )
-            throws IOException
+    private static class BackupNames
         {
-        byte[] buffer = new byte[1024];
-        int read;
-        while((read = inputStream.read(buffer)) != -1)
+        // name -> next free N
+        private final Map<String, Integer> next = new HashMap<>();
+
+        BackupNames( Collection<String> names )
+            {
+            for ( String name : names )
+                {
+                int underscore = 0;
+                while ( underscore < name.length() && Character.isDigit( name.charAt( underscore )))
+                    underscore++;
+                if ( underscore == 0 || underscore >= name.length() - 1 ||
+                        name.charAt( underscore ) != '_' || underscore > 9 )
+                    continue;
+
+                String original = name.substring( underscore + 1 );
+                int n = Integer.parseInt( name.substring( 0, underscore )) + 1;
+                Integer current = next.get( original );
+                if ( current == null || current < n )
+                    next.put( original, n );
+                }
+            }
+
+        /**
+         * @param name name to back up
+         * @return free backup name
+         */
+        synchronized String allocate( String name )
             {
-            outputStream.write(buffer, 0, read);
+            Integer current = next.get( name );
+            int n = ( current == null ) ? 0 : current;
+            next.put( name, n + 1 );
+            return n + "_" + name;
             }
-        outputStream.flush();
         }
     }
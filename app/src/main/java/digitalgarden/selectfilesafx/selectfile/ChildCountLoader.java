@@ -0,0 +1,183 @@
+package digitalgarden.selectfilesafx.selectfile;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Counts items of folder rows in the background.
+ *
+ * Counting a folder needs a (count-only) listing. SelectFileEntry.getData() needs the count of
+ * each FOLDER and LINKED_FOLDER row - on the UI thread. Instead of counting there, rows show a
+ * placeholder, and ask this loader to count. When counts arrive, listener is called (once for
+ * a burst of counts) on the UI thread.
+ *
+ * Counts are cached by the identity AND the last modification of the folder, so a changed
+ * folder is counted again. SAF folders do not always change their modification, so counts
+ * started before the last invalidate() of their folder are dropped.
+ */
+class ChildCountLoader
+    {
+    /**
+     * Called on the UI thread, when new counts are available
+     */
+    interface OnCountsChangedListener
+        {
+        void onCountsChanged();
+        }
+
+    // Folders counted at the same time
+    private static final int THREADS = 2;
+
+    // Number of cached counts
+    private static final int CACHE_SIZE = 1024;
+
+    private final Context context;
+    private final OnCountsChangedListener listener;
+
+    private final Handler handler = new Handler( Looper.getMainLooper() );
+    private final ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+
+    // key@lastModified -> count
+    private final LruCache<String, Integer> cache = new LruCache<>( CACHE_SIZE );
+    // keys under counting - each folder is counted only once
+    private final Set<String> pending = Collections.synchronizedSet( new HashSet<String>() );
+
+    // Generation: increased by each invalidate(). Guarded by this
+    private long generation = 0L;
+    // folder key -> generation of its last invalidate(). Guarded by this
+    private final LruCache<String, Long> invalidated = new LruCache<>( CACHE_SIZE );
+
+    // Listener is already posted to the UI thread
+    private boolean notifyPosted = false;
+
+    private final Runnable notifyRunnable = new Runnable()
+        {
+        @Override
+        public void run()
+            {
+            notifyPosted = false;
+            listener.onCountsChanged();
+            }
+        };
+
+
+    ChildCountLoader( Context context, OnCountsChangedListener listener )
+        {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        }
+
+    private static String cacheKey( DataFile folder )
+        {
+        return folder.getKey() + "@" + folder.lastModified();
+        }
+
+    /**
+     * Returns item count of the folder, if it is known (counted or cached). If not, starts
+     * counting in the background - listener will be notified.
+     * Should be called on the UI thread.
+     * @param folder folder to count
+     * @return item count or DataFile.UNKNOWN_COUNT
+     */
+    int getChildCount( final DataFile folder )
+        {
+        int count = folder.getChildCount();
+        if ( count != DataFile.UNKNOWN_COUNT )
+            return count;
+
+        final String key = cacheKey( folder );
+        Integer cached = cache.get( key );
+        if ( cached != null )
+            {
+            folder.setChildCount( cached );
+            return cached;
+            }
+
+        if ( pending.add( key ) && !executor.isShutdown() )
+            {
+            final long started;
+            synchronized ( this )
+                {
+                started = generation;
+                }
+            executor.execute( new Runnable()
+                {
+                @Override
+                public void run()
+                    {
+                    // Failed folder is not counted again (until it is invalidated or modified)
+                    int counted = DataFile.UNKNOWN_COUNT;
+                    try
+                        {
+                        counted = folder.countChildren( context );
+                        }
+                    catch ( RuntimeException e )
+                        {
+                        // eg. SecurityException of a revoked tree, or crash of the provider
+                        Log.w( "CHILDCOUNT", "Items of " + folder.getKey() + " cannot be counted: " + e );
+                        }
+                    finally
+                        {
+                        synchronized ( ChildCountLoader.this )
+                            {
+                            Long last = invalidated.get( folder.getKey() );
+                            if ( last != null && last > started )
+                                folder.setChildCount( DataFile.UNKNOWN_COUNT ); // stale count
+                            else
+                                cache.put( key, counted );
+                            }
+                        pending.remove( key );
+                        }
+                    postNotify();
+                    }
+                } );
+            }
+
+        return DataFile.UNKNOWN_COUNT;
+        }
+
+    /**
+     * Forgets cached count of this folder (eg. after creating a new item inside)
+     */
+    synchronized void invalidate( DataFile folder )
+        {
+        invalidated.put( folder.getKey(), ++generation );
+        cache.remove( cacheKey( folder ));
+        folder.setChildCount( DataFile.UNKNOWN_COUNT );
+        }
+
+    // Counts can arrive in bursts - list is refreshed only once
+    private void postNotify()
+        {
+        handler.post( new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                if ( !notifyPosted && !executor.isShutdown() )
+                    {
+                    notifyPosted = true;
+                    handler.post( notifyRunnable );
+                    }
+                }
+            } );
+        }
+
+    /**
+     * Stops counting - should be called when activity is destroyed
+     */
+    void shutdown()
+        {
+        executor.shutdownNow();
+        handler.removeCallbacksAndMessages( null );
+        }
+    }
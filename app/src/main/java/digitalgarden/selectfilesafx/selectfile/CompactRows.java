@@ -0,0 +1,372 @@
+package digitalgarden.selectfilesafx.selectfile;
+
+import android.content.Context;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact store of listed rows (struct of arrays).
+ *
+ * Folders are listed in batches, and each batch is kept here as parallel primitive arrays and
+ * pools - instead of a DataFile (with File or DocumentFile, Uri, name String, attributes) and
+ * two CollationKey-s for each row. Rows are shown by light SelectFileEntry-s (this store and an
+ * index), DataFile is created only when it is really needed (check createDataFile()).
+ *
+ * Names and document ids of the batch are concatenated into one String, collation keys into one
+ * byte array. ICU collation keys compare as unsigned byte arrays, so no CollationKey object is
+ * kept.
+ *
+ * Rows are never changed after creation, so they can be read on any thread.
+ */
+class CompactRows
+    {
+    // Fixed costs on a 32-bit (compressed oops) heap - used by measureBytesPerRow()
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int STRING_HEADER = 24;
+    private static final int REFERENCE = 4;
+
+    // Header and fields of this object (counted from the declared fields)
+    private static final int ROWS_BYTES = objectBytes( CompactRows.class );
+
+    private final Context context;          // application context to create DataFile-s
+    private final DataFile parent;          // listed folder (null for rows created from DataFile-s)
+    private final DataFile[] dataFiles;     // null, if DataFile-s can be created again
+
+    private final int count;
+    private final boolean[] directories;
+    private final long[] sizes;             // bytes of files, 0 for folders
+    private final long[] lastModifieds;
+    private final int[] flags;              // DocumentsContract.Document.FLAG_...
+    private final String[] mimeTypes;       // shared instances inside the batch
+    private final long[] stableIds;         // check SelectFileEntry.getStableId()
+
+    // Row i: [ends[i-1], ends[i]) inside the pool
+    private final String names;
+    private final int[] nameEnds;
+    private final String documentIds;       // null for File-s
+    private final int[] documentIdEnds;
+    private final byte[] keys;              // collation keys of the names
+    private final int[] keyEnds;
+    private final byte[] extensionKeys;     // collation keys of the extensions (empty: no extension)
+    private final int[] extensionKeyEnds;
+
+    // Measured once (check getBytesPerRow())
+    private final int bytesPerRow;
+
+
+    /**
+     * Rows of a listed batch. DataFile-s of the batch are not kept.
+     * @param context context to create DataFile-s later
+     * @param parent listed folder
+     * @param batch children of the folder
+     * @return compact rows of the batch
+     */
+    static CompactRows fromBatch( Context context, DataFile parent, List<DataFile> batch )
+        {
+        int[] types = new int[ batch.size() ];
+        for ( int i = 0; i < types.length; i++ )
+            types[i] = batch.get(i).isDirectory() ? SelectFileEntry.FOLDER : SelectFileEntry.FILE;
+        return new CompactRows( context, parent, batch, types );
+        }
+
+    /**
+     * One row created from a DataFile (eg. linked folder or newly created file).
+     * DataFile is kept, it is returned by createDataFile().
+     * @param dataFile file or folder
+     * @param type type of its entry (FOLDER, FILE or LINKED_FOLDER)
+     * @return compact row
+     */
+    static CompactRows fromDataFile( DataFile dataFile, int type )
+        {
+        return new CompactRows( null, null, Collections.singletonList( dataFile ),
+                new int[] { type } );
+        }
+
+    private CompactRows( Context context, DataFile parent, List<DataFile> batch, int[] types )
+        {
+        this.context = ( context == null ) ? null : context.getApplicationContext();
+        this.count = batch.size();
+
+        directories = new boolean[count];
+        sizes = new long[count];
+        lastModifieds = new long[count];
+        flags = new int[count];
+        mimeTypes = new String[count];
+        stableIds = new long[count];
+        nameEnds = new int[count];
+        keyEnds = new int[count];
+        extensionKeyEnds = new int[count];
+
+        StringBuilder namePool = new StringBuilder( count * 24 );
+        StringBuilder idPool = ( parent != null && !parent.isFileSystem() ) ?
+                new StringBuilder( count * 48 ) : null;
+        int[] idEnds = ( idPool != null ) ? new int[count] : null;
+        ByteArrayOutputStream keyPool = new ByteArrayOutputStream( count * 32 );
+        ByteArrayOutputStream extensionKeyPool = new ByteArrayOutputStream( count * 8 );
+        Map<String, String> sharedMimeTypes = new HashMap<>();
+
+        for ( int i = 0; i < count; i++ )
+            {
+            DataFile dataFile = batch.get(i);
+            DataFile.Attributes attributes = dataFile.getAttributes();
+
+            directories[i] = attributes.directory;
+            sizes[i] = attributes.size;
+            lastModifieds[i] = attributes.lastModified;
+            flags[i] = attributes.flags;
+            mimeTypes[i] = share( sharedMimeTypes, attributes.mimeType );
+            stableIds[i] = SelectFileEntry.createStableId( types[i], dataFile );
+
+            namePool.append( attributes.name );
+            nameEnds[i] = namePool.length();
+
+            if ( idPool != null )
+                {
+                String documentId = dataFile.getDocumentId();
+                if ( documentId == null )
+                    idPool = null; // DataFile-s cannot be created again, they are kept
+                else
+                    {
+                    idPool.append( documentId );
+                    idEnds[i] = idPool.length();
+                    }
+                }
+
+            byte[] key = SelectFileEntry.createSortKey( attributes.name ).toByteArray();
+            keyPool.write( key, 0, key.length );
+            keyEnds[i] = keyPool.size();
+
+            int dot = attributes.name.lastIndexOf( '.' );
+            if ( dot > 0 && dot < attributes.name.length() - 1 )
+                {
+                byte[] extensionKey = SelectFileEntry.createSortKey(
+                        attributes.name.substring( dot + 1 )).toByteArray();
+                extensionKeyPool.write( extensionKey, 0, extensionKey.length );
+                }
+            extensionKeyEnds[i] = extensionKeyPool.size();
+            }
+
+        names = namePool.toString();
+        keys = keyPool.toByteArray();
+        extensionKeys = extensionKeyPool.toByteArray();
+
+        boolean recreatable = parent != null && ( parent.isFileSystem() || idPool != null );
+        this.parent = recreatable ? parent : null;
+        this.dataFiles = recreatable ? null : batch.toArray( new DataFile[0] );
+        this.documentIds = ( recreatable && idPool != null ) ? idPool.toString() : null;
+        this.documentIdEnds = ( this.documentIds != null ) ? idEnds : null;
+        this.bytesPerRow = measureBytesPerRow();
+        }
+
+    // Mime types repeat a lot - one instance is kept for each
+    private static String share( Map<String, String> shared, String value )
+        {
+        if ( value == null )
+            return null;
+        String previous = shared.get( value );
+        if ( previous != null )
+            return previous;
+        shared.put( value, value );
+        return value;
+        }
+
+    private static int start( int[] ends, int i )
+        {
+        return ( i == 0 ) ? 0 : ends[i - 1];
+        }
+
+    int getCount()
+        {
+        return count;
+        }
+
+    boolean isDirectory( int i )
+        {
+        return directories[i];
+        }
+
+    long getSize( int i )
+        {
+        return sizes[i];
+        }
+
+    long getLastModified( int i )
+        {
+        return lastModifieds[i];
+        }
+
+    long getStableId( int i )
+        {
+        return stableIds[i];
+        }
+
+    /**
+     * Name of the row - a new String is created, use it only for visible rows
+     */
+    String getName( int i )
+        {
+        return names.substring( start( nameEnds, i ), nameEnds[i] );
+        }
+
+    /**
+     * Folds the case of the text char by char, by the rule of String.regionMatches( true, ...)
+     * - search text and names are compared by the same rule. (toLowerCase( Locale ) follows
+     * the locale, eg. Turkish dotted/dotless i, and it can change the length.)
+     * @param text text to search for
+     * @return folded text (same length)
+     */
+    static String foldCase( String text )
+        {
+        char[] chars = text.toCharArray();
+        for ( int i = 0; i < chars.length; i++ )
+            chars[i] = Character.toLowerCase( Character.toUpperCase( chars[i] ));
+        return new String( chars );
+        }
+
+    /**
+     * Case-insensitive search inside the name - without creating Strings
+     * @param i row
+     * @param foldedText text to find (check foldCase())
+     * @return true if name contains the text
+     */
+    boolean nameContains( int i, String foldedText )
+        {
+        int start = start( nameEnds, i );
+        int last = nameEnds[i] - foldedText.length();
+        for ( int from = start; from <= last; from++ )
+            {
+            if ( names.regionMatches( true, from, foldedText, 0, foldedText.length() ))
+                return true;
+            }
+        return false;
+        }
+
+    /**
+     * Names are the same (rows of different listings)
+     */
+    boolean sameName( int i, CompactRows other, int j )
+        {
+        int start = start( nameEnds, i );
+        int length = nameEnds[i] - start;
+        int otherStart = start( other.nameEnds, j );
+        return length == other.nameEnds[j] - otherStart &&
+                names.regionMatches( start, other.names, otherStart, length );
+        }
+
+    /**
+     * Compares names by their collation keys
+     */
+    int compareNames( int i, CompactRows other, int j )
+        {
+        return compareBytes( keys, start( keyEnds, i ), keyEnds[i],
+                other.keys, start( other.keyEnds, j ), other.keyEnds[j] );
+        }
+
+    /**
+     * Compares extensions by their collation keys. Names without extension come first.
+     */
+    int compareExtensions( int i, CompactRows other, int j )
+        {
+        return compareBytes( extensionKeys, start( extensionKeyEnds, i ), extensionKeyEnds[i],
+                other.extensionKeys, start( other.extensionKeyEnds, j ), other.extensionKeyEnds[j] );
+        }
+
+    // Unsigned, lexicographic - the order of CollationKey.compareTo()
+    private static int compareBytes( byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd )
+        {
+        while ( aStart < aEnd && bStart < bEnd )
+            {
+            int result = ( a[aStart++] & 0xff ) - ( b[bStart++] & 0xff );
+            if ( result != 0 )
+                return result;
+            }
+        return ( aEnd - aStart ) - ( bEnd - bStart );
+        }
+
+    /**
+     * Creates the DataFile of the row (with its attribute snapshot) - only when it is needed
+     * (eg. row is opened, or its items are counted). Caller should keep it.
+     * @param i row
+     * @return DataFile of the row
+     */
+    DataFile createDataFile( int i )
+        {
+        if ( dataFiles != null )
+            return dataFiles[i];
+
+        String documentId = ( documentIds == null ) ? null :
+                documentIds.substring( start( documentIdEnds, i ), documentIdEnds[i] );
+        String name = getName( i );
+        return parent.createChild( context, name, documentId,
+                new DataFile.Attributes( name, mimeTypes[i], directories[i], sizes[i],
+                        lastModifieds[i], flags[i] ));
+        }
+
+    /**
+     * Retained heap of one row (arrays and pools; shared objects and kept DataFile-s are not
+     * counted)
+     */
+    int getBytesPerRow()
+        {
+        return bytesPerRow;
+        }
+
+    private int measureBytesPerRow()
+        {
+        if ( count == 0 )
+            return 0;
+
+        long bytes = ROWS_BYTES
+                + ARRAY_HEADER + count                  // directories
+                + 3 * ( ARRAY_HEADER + 8L * count )     // sizes, lastModifieds, stableIds
+                + 4 * ( ARRAY_HEADER + 4L * count )     // flags, nameEnds, keyEnds, extensionKeyEnds
+                + ARRAY_HEADER + REFERENCE * count      // mimeTypes
+                + stringBytes( names )
+                + ARRAY_HEADER + keys.length
+                + ARRAY_HEADER + extensionKeys.length;
+        if ( documentIds != null )
+            bytes += stringBytes( documentIds ) + ARRAY_HEADER + 4L * count;
+        if ( dataFiles != null )
+            bytes += ARRAY_HEADER + REFERENCE * count;  // kept DataFile-s are counted by their entries
+        return (int) ( bytes / count );
+        }
+
+    /**
+     * Estimated heap of an object: header and its declared instance fields (references are
+     * compressed), aligned to 8 bytes. Fields of superclasses are not counted.
+     */
+    static int objectBytes( Class<?> type )
+        {
+        int bytes = OBJECT_HEADER;
+        for ( Field field : type.getDeclaredFields() )
+            {
+            if ( Modifier.isStatic( field.getModifiers() ))
+                continue;
+            Class<?> fieldType = field.getType();
+            if ( fieldType == long.class || fieldType == double.class )
+                bytes += 8;
+            else if ( fieldType == boolean.class || fieldType == byte.class )
+                bytes += 1;
+            else if ( fieldType == char.class || fieldType == short.class )
+                bytes += 2;
+            else
+                bytes += 4; // int, float and references
+            }
+        return ( bytes + 7 ) & ~7;
+        }
+
+    /**
+     * Estimated heap of a String with its characters (0 for null)
+     */
+    static long stringBytes( String string )
+        {
+        return ( string == null ) ? 0L : STRING_HEADER + ARRAY_HEADER + 2L * string.length();
+        }
+    }
@@ -2,11 +2,29 @@ package digitalgarden.selectfilesafx.selectfile;
 
 import android.content.Context;
 import android.content.UriPermission;
+import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.provider.DocumentsContract;
+import android.util.Log;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import androidx.annotation.RequiresApi;
 import androidx.core.content.FileProvider;
 import androidx.documentfile.provider.DocumentFile;
 
@@ -25,13 +43,97 @@ import androidx.documentfile.provider.DocumentFile;
  * (Both can be null)
  *
  * (Media content, Datasets and other ways are not covered yet)
+ *
+ * Children of SAF folders are listed by one DocumentsContract query (see listFiles()). These
+ * DataFile-s already carry name, mime type, size, last modified and flags, and their
+ * DocumentFile is created only when it is really needed.
+ *
+ * Attributes are kept in an immutable snapshot (see Attributes). Scrolling and sorting the list
+ * needs no I/O at all; refresh() reads the attributes again.
  */
 class DataFile
     {
+    // Columns of the children-query - everything needed by the list in one step
+    private static final String[] CHILD_PROJECTION = new String[] {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_SIZE,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+            DocumentsContract.Document.COLUMN_FLAGS };
+
+    // Debug counter: calls reaching the file system or the provider (stat or query)
+    private static final AtomicInteger backendCalls = new AtomicInteger();
+
+    /**
+     * Immutable snapshot of the attributes. It is taken when DataFile is discovered (listed),
+     * or at first use. Only refresh() can replace it.
+     */
+    static final class Attributes
+        {
+        final String name;
+        final String mimeType;   // null for File-s
+        final boolean directory;
+        final long size;         // bytes of files, 0 for folders
+        final long lastModified;
+        final int flags;         // DocumentsContract.Document.FLAG_... (0 for File-s)
+
+        Attributes( String name, String mimeType, boolean directory, long size,
+                    long lastModified, int flags )
+            {
+            this.name = name;
+            this.mimeType = mimeType;
+            this.directory = directory;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.flags = flags;
+            }
+        }
+
+    /**
+     * Receives children of a folder in batches (check listFiles())
+     */
+    interface BatchCallback
+        {
+        void onBatch( List<DataFile> batch );
+        }
+
+    // Children are returned in batches of this size, if not given otherwise
+    static final int DEFAULT_BATCH_SIZE = 256;
+
+    // Child count is not known yet (see getChildCount())
+    static final int UNKNOWN_COUNT = -1;
+
+    // Count-only query needs nothing but the ids
+    private static final String[] COUNT_PROJECTION = new String[] {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID };
+
+    // Attributes of a missing (null) DataFile
+    private static final Attributes NULL_ATTRIBUTES =
+            new Attributes( "ERROR!", null, false, 0L, 0L, 0 );
+
+    // Header and fields of the kept objects - check getRetainedBytes()
+    private static final int DATAFILE_BYTES = CompactRows.objectBytes( DataFile.class );
+    private static final int ATTRIBUTES_BYTES = CompactRows.objectBytes( Attributes.class );
+    private static final int FILE_BYTES = CompactRows.objectBytes( File.class );
+    // Uri keeps its string, and its parsed parts are cached lazily - only the string is counted
+    private static final int URI_BYTES = 16;
+
     private final File file;
-    private final DocumentFile documentFile;
+    private DocumentFile documentFile; // Created lazily for children listed by query
+    private final Uri documentUri;     // DocumentFile's uri - known even without documentFile
+    private final Context context;     // Application context to create documentFile and query
     private final Uri uri;
 
+    // Parent of children listed by query (their DocumentFile doesn't know its parent)
+    private final DataFile parentFolder;
+
+    // null until first use - listing sets it immediately
+    private volatile Attributes attributes;
+
+    // Number of items inside a folder - counted only on request (see countChildren())
+    private volatile int childCount = UNKNOWN_COUNT;
+
 
     DataFile( File file )
         {
@@ -44,43 +146,223 @@ class DataFile
 
         this.file = file;
         this.documentFile = null;
+        this.documentUri = null;
+        this.context = null;
         this.uri = null;
+        this.parentFolder = null;
         }
 
     DataFile( DocumentFile documentFile )
         {
         this.file = null;
         this.documentFile = documentFile;
+        this.documentUri = ( documentFile == null ) ? null : documentFile.getUri();
+        this.context = null;
         this.uri = null;
+        this.parentFolder = null;
         }
 
     DataFile( Context context, UriPermission uriPermission ) // tree-uri
         {
         this.file = null;
         this.uri = uriPermission.getUri();
-        this.documentFile = DocumentFile.fromTreeUri(context, uri);
+        this.documentFile = DocumentFile.fromTreeUri(context.getApplicationContext(), uri);
+        this.documentUri = ( documentFile == null ) ? null : documentFile.getUri();
+        this.context = context.getApplicationContext();
+        this.parentFolder = null;
         }
 
+    /**
+     * New child of a SAF folder (created by createFile() or createFolder())
+     */
+    private DataFile( DataFile parentFolder, DocumentFile documentFile )
+        {
+        this.file = null;
+        this.documentFile = documentFile;
+        this.documentUri = documentFile.getUri();
+        this.context = parentFolder.context;
+        this.uri = null;
+        this.parentFolder = parentFolder;
+        }
 
-    boolean isFileSystem()
+    /**
+     * Child of a SAF folder, created from one row of the children-query.
+     * DocumentFile is NOT created here: DocumentFile.fromTreeUri() would ask the package manager
+     * for each child. getDocumentFile() creates it when needed.
+     */
+    private DataFile( Context context, DataFile parentFolder, Uri documentUri,
+                      Attributes attributes )
         {
-        return documentFile == null;
+        this.file = null;
+        this.documentFile = null;
+        this.documentUri = documentUri;
+        this.context = context.getApplicationContext();
+        this.uri = null;
+        this.parentFolder = parentFolder;
+        this.attributes = attributes;
         }
 
-    boolean isNull()
+
+    /**
+     * Number of backend calls (stat or provider query) since the last reset
+     */
+    static int getBackendCalls()
         {
-        return file==null && documentFile==null;
+        return backendCalls.get();
         }
 
-    boolean isDirectory()
+    /**
+     * Resets backend call counter
+     * @return number of backend calls before reset
+     */
+    static int resetBackendCalls()
+        {
+        return backendCalls.getAndSet( 0 );
+        }
+
+    /**
+     * Returns the attribute snapshot. It is read from backend only once, at first use.
+     */
+    Attributes getAttributes()
+        {
+        Attributes current = attributes;
+        if ( current == null )
+            {
+            current = readAttributes();
+            attributes = current;
+            }
+        return current;
+        }
+
+    /**
+     * Reads attributes again from the backend, and replaces the snapshot.
+     * Snapshot is never updated without calling this method.
+     */
+    void refresh()
+        {
+        attributes = readAttributes();
+        childCount = UNKNOWN_COUNT;
+        }
+
+    private Attributes readAttributes()
         {
         if ( file != null )
-            return file.isDirectory();
+            {
+            if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O )
+                {
+                Attributes read = readFileAttributes( file );
+                if ( read != null )
+                    return read;
+                }
+
+            // Below API 26: each call is a separate stat
+            backendCalls.addAndGet( 3 );
+            boolean directory = file.isDirectory();
+            return new Attributes( file.getName(), null, directory,
+                    directory ? 0L : file.length(), file.lastModified(), 0 );
+            }
 
-        if ( documentFile != null )
-            return documentFile.isDirectory();
+        if ( documentUri != null )
+            {
+            Attributes queried = queryAttributes();
+            if ( queried != null )
+                return queried;
 
-        return false; // both are null
+            // Fallback: DocumentFile asks provider for each property separately
+            DocumentFile document = getDocumentFile();
+            backendCalls.addAndGet( 4 );
+            return new Attributes( document.getName(), document.getType(),
+                    document.isDirectory(), document.length(), document.lastModified(), 0 );
+            }
+
+        return NULL_ATTRIBUTES;
+        }
+
+    /**
+     * Reads all attributes of a File by ONE stat call - isDirectory(), length() and
+     * lastModified() of File would stat the file three times
+     * @return attributes, or null if path cannot be used by NIO
+     */
+    @RequiresApi( api = Build.VERSION_CODES.O )
+    private static Attributes readFileAttributes( File file )
+        {
+        try
+            {
+            backendCalls.incrementAndGet();
+            BasicFileAttributes basic = Files.readAttributes( file.toPath(), BasicFileAttributes.class );
+            boolean directory = basic.isDirectory();
+            return new Attributes( file.getName(), null, directory,
+                    directory ? 0L : basic.size(), basic.lastModifiedTime().toMillis(), 0 );
+            }
+        catch ( IOException e )
+            {
+            // Same as File: missing file is not a directory, and it has no size or date
+            return new Attributes( file.getName(), null, false, 0L, 0L, 0 );
+            }
+        catch ( InvalidPathException e )
+            {
+            return null;
+            }
+        }
+
+    /**
+     * Reads all attributes of this document by ONE query
+     * @return attributes, or null if document cannot be queried this way
+     */
+    private Attributes queryAttributes()
+        {
+        if ( context == null ) // DataFile was created from a DocumentFile
+            return null;
+
+        Cursor cursor = null;
+        try
+            {
+            backendCalls.incrementAndGet();
+            cursor = context.getContentResolver().query( documentUri, CHILD_PROJECTION,
+                    null, null, null );
+            if ( cursor != null && cursor.moveToFirst() )
+                return attributesFromCursor( cursor );
+            }
+        catch ( Exception e )
+            {
+            Log.w( "DATAFILE", "Attributes of " + documentUri + " cannot be queried: " + e );
+            }
+        finally
+            {
+            FileOperations.closeSilently( cursor );
+            }
+        return null;
+        }
+
+    /**
+     * Creates attributes from the current row of a CHILD_PROJECTION cursor
+     */
+    private static Attributes attributesFromCursor( Cursor cursor )
+        {
+        String mimeType = cursor.getString( 2 );
+        return new Attributes(
+                cursor.getString( 1 ),
+                mimeType,
+                DocumentsContract.Document.MIME_TYPE_DIR.equals( mimeType ),
+                cursor.isNull( 3 ) ? 0L : cursor.getLong( 3 ),
+                cursor.isNull( 4 ) ? 0L : cursor.getLong( 4 ),
+                cursor.isNull( 5 ) ? 0 : cursor.getInt( 5 ));
+        }
+
+
+    boolean isFileSystem()
+        {
+        return documentUri == null;
+        }
+
+    boolean isNull()
+        {
+        return file==null && documentUri==null;
+        }
+
+    boolean isDirectory()
+        {
+        return getAttributes().directory;
         }
 
     File getFile()
@@ -90,49 +372,207 @@ class DataFile
 
     DocumentFile getDocumentFile()
         {
+        if ( documentFile == null && documentUri != null )
+            {
+            // Children listed by query: documentfile 1.0.1 keeps the document id of the uri
+            // fromTreeUri() asks the package manager - this is a backend call, too
+            backendCalls.incrementAndGet();
+            documentFile = DocumentFile.fromTreeUri( context, documentUri );
+            }
+
         return documentFile;
         }
 
     String getName()
         {
-        if ( file != null )
-            return file.getName();
+        return getAttributes().name;
+        }
 
-        if ( documentFile != null )
-            return documentFile.getName();
+    String getMimeType()
+        {
+        return getAttributes().mimeType;
+        }
 
-        return "ERROR!";
+    /**
+     * Document flags (DocumentsContract.Document.FLAG_...) - only known for children listed by
+     * query, 0 otherwise
+     */
+    int getFlags()
+        {
+        return getAttributes().flags;
         }
 
+    /**
+     * Size of a file in bytes, or number of items inside a folder.
+     * Item count of a folder is NOT part of the snapshot, it needs a count-query, which could be
+     * slow. Use getChildCount() and ChildCountLoader on the UI thread!
+     */
     long length()
         {
+        if ( !isDirectory() )
+            return getAttributes().size;
+
+        return countChildren( context );
+        }
+
+    /**
+     * Number of items inside this folder, if it was already counted. This never blocks.
+     * @return item count or UNKNOWN_COUNT
+     */
+    int getChildCount()
+        {
+        return childCount;
+        }
+
+    /**
+     * Sets item count known from elsewhere (eg. from a cache)
+     */
+    void setChildCount( int childCount )
+        {
+        this.childCount = childCount;
+        }
+
+    /**
+     * Counts items inside this folder - without creating DataFile-s. Result is kept.
+     * File-s: names are listed only, SAF: ids are queried only (count-only query).
+     * This is a blocking call, it should run in the background!
+     * @param context context to reach content resolver (can be null for File-s)
+     * @return item count (0 for files and for missing folders)
+     */
+    int countChildren( Context context )
+        {
+        int count = childCount;
+        if ( count != UNKNOWN_COUNT )
+            return count;
+
+        count = 0;
         if ( file != null )
             {
-            if ( file.isDirectory() )
-                return file.listFiles().length; // If it is a folder, list cannot be null
-            else
-                return file.length();
+            backendCalls.incrementAndGet();
+            String[] names = file.list();
+            count = ( names == null ) ? 0 : names.length;
             }
-        if ( documentFile != null )
+
+        else if ( documentUri != null )
             {
-            if ( documentFile.isDirectory() )
-                return documentFile.listFiles().length; // If it is a folder, list cannot be null
-            else
-                return documentFile.length();
+            count = queryChildCount( context != null ? context : this.context );
+            if ( count == UNKNOWN_COUNT )
+                {
+                // Fallback: DocumentFile lists the folder
+                backendCalls.incrementAndGet();
+                count = getDocumentFile().listFiles().length; // List cannot be null
+                }
             }
 
-        return 0L;
+        childCount = count;
+        return count;
+        }
+
+    /**
+     * Counts children of a SAF (tree) folder by a query of ids only
+     * @return item count or UNKNOWN_COUNT if folder cannot be queried this way
+     */
+    private int queryChildCount( Context context )
+        {
+        Uri childrenUri = getChildrenUri();
+        if ( context == null || childrenUri == null )
+            return UNKNOWN_COUNT;
+
+        Cursor cursor = null;
+        try
+            {
+            backendCalls.incrementAndGet();
+            cursor = context.getContentResolver().query( childrenUri, COUNT_PROJECTION,
+                    null, null, null );
+            if ( cursor != null )
+                return cursor.getCount();
+            }
+        catch ( Exception e )
+            {
+            Log.w( "DATAFILE", "Children of " + documentUri + " cannot be counted: " + e );
+            }
+        finally
+            {
+            FileOperations.closeSilently( cursor );
+            }
+        return UNKNOWN_COUNT;
         }
 
     long lastModified()
         {
+        return getAttributes().lastModified;
+        }
+
+    /**
+     * Identity of the file or document: file-uri or document-uri as string.
+     * Missing (null) DataFile has empty key.
+     */
+    String getKey()
+        {
+        if ( file != null )
+            return Uri.fromFile( file ).toString();
+
+        if ( documentUri != null )
+            return documentUri.toString();
+
+        return "";
+        }
+
+    /**
+     * Estimated heap of this DataFile with its attributes, name and path (or uri).
+     * DocumentFile and the shared parent are not counted.
+     */
+    int getRetainedBytes()
+        {
+        long bytes = DATAFILE_BYTES;
+        Attributes current = attributes;
+        if ( current != null && current != NULL_ATTRIBUTES )
+            bytes += ATTRIBUTES_BYTES + CompactRows.stringBytes( current.name );
         if ( file != null )
-            return file.lastModified();
+            bytes += FILE_BYTES + CompactRows.stringBytes( file.getPath() );
+        if ( documentUri != null )
+            bytes += URI_BYTES + CompactRows.stringBytes( documentUri.toString() );
+        return (int) bytes;
+        }
 
-        if ( documentFile != null )
-            return documentFile.lastModified();
+    /**
+     * Document id of a SAF document
+     * @return document id, or null for File-s (and for uris without document)
+     */
+    String getDocumentId()
+        {
+        if ( documentUri == null )
+            return null;
 
-        return 0L;
+        try
+            {
+            return DocumentsContract.getDocumentId( documentUri );
+            }
+        catch ( IllegalArgumentException e )
+            {
+            return null; // tree-uri without document
+            }
+        }
+
+    /**
+     * Children-uri of a SAF (tree) folder: children can be queried, and providers send change
+     * notifications on it.
+     * @return children-uri, or null if this is not a SAF tree document
+     */
+    Uri getChildrenUri()
+        {
+        if ( documentUri == null || !DocumentsContract.isTreeUri( documentUri ) )
+            return null;
+
+        try
+            {
+            return DocumentsContract.buildChildDocumentsUriUsingTree( documentUri,
+                    DocumentsContract.getDocumentId( documentUri ));
+            }
+        catch ( IllegalArgumentException e )
+            {
+            return null; // tree-uri without document
+            }
         }
 
     // URI has different uses:
@@ -151,7 +591,7 @@ class DataFile
 
         if ( file != null )
             {
-            if (file.isFile())
+            if ( !isDirectory() )
                 {
                 // File-provider's uri
                 return FileProvider.getUriForFile(context,
@@ -165,51 +605,409 @@ class DataFile
                 }
             }
 
-        if ( documentFile != null )
+        if ( documentUri != null )
             // DocumentFile's uri
-            return documentFile.getUri();
+            return documentUri;
 
         // File's uri cannot be returned
         return null;
         }
 
+    /**
+     * Parent folder, if it is known without I/O (File-s, and children listed by query)
+     * @return parent folder, or null if it is not known (or this is a root)
+     */
+    DataFile getKnownParentFolder()
+        {
+        if ( parentFolder != null )
+            return parentFolder;
+
+        if ( file != null && file.getParentFile() != null )
+            return new DataFile( file.getParentFile() );
+
+        return null;
+        }
+
     public DataFile getParentFolder()
         {
+        if ( parentFolder != null )
+            return parentFolder;
+
         if ( file != null )
             return new DataFile( file.getParentFile() );
 
-        if ( documentFile != null )
-            return new DataFile( documentFile.getParentFile() );
+        if ( documentUri != null )
+            return new DataFile( getDocumentFile().getParentFile() );
 
         return null;
         }
 
-    public DataFile[] listFiles()
+    public DataFile[] listFiles( Context context )
+        {
+        return listFiles( context, null );
+        }
+
+    /**
+     * Lists the children of this folder.
+     * @param context context to reach content resolver
+     * @param signal cancellation signal of the load, or null. If it is cancelled,
+     *               OperationCanceledException is thrown
+     * @return children (empty array for files), or null for missing DataFile
+     */
+    public DataFile[] listFiles( Context context, CancellationSignal signal )
+        {
+        if ( isNull() )
+            return null;
+
+        final List<DataFile> children = new ArrayList<>();
+        listFiles( context, signal, DEFAULT_BATCH_SIZE, new BatchCallback()
+            {
+            @Override
+            public void onBatch( List<DataFile> batch )
+                {
+                children.addAll( batch );
+                }
+            } );
+        return children.toArray( new DataFile[0] );
+        }
+
+    /**
+     * Lists the children of this folder in batches. Batches are returned as soon as they are
+     * ready (with attribute snapshots), so caller can show them before the whole folder is
+     * listed. (Check openListing() - this is the same, but pushed to a callback.)
+     * @param context context to reach content resolver
+     * @param signal cancellation signal of the load, or null. If it is cancelled,
+     *               OperationCanceledException is thrown
+     * @param batchSize maximal number of children in one batch
+     * @param callback receives the batches (on the calling thread)
+     */
+    public void listFiles( Context context, CancellationSignal signal, int batchSize,
+                           BatchCallback callback )
+        {
+        Listing listing = openListing( context, signal, batchSize );
+        try
+            {
+            List<DataFile> batch;
+            while ( (batch = listing.nextBatch()) != null )
+                callback.onBatch( batch );
+            }
+        finally
+            {
+            listing.close();
+            }
+        }
+
+    /**
+     * Children of a folder, read batch by batch (check openListing()).
+     * Only the current batch is in memory: the folder is read further only when the next batch
+     * is asked for. So even huge folders can be processed in constant memory.
+     * Listing holds a directory stream or a cursor - it should be closed!
+     */
+    abstract static class Listing implements Closeable
         {
-        DataFile[] dataFiles = null;
+        final CancellationSignal signal;
+        final int batchSize;
+
+        Listing( CancellationSignal signal, int batchSize )
+            {
+            this.signal = signal;
+            this.batchSize = batchSize;
+            }
 
+        /**
+         * Reads the next batch. If signal was cancelled, OperationCanceledException is thrown.
+         * @return next batch of children (with attribute snapshots), or null at the end
+         */
+        abstract List<DataFile> nextBatch();
+
+        @Override
+        public void close()
+            {
+            // Nothing is held by default
+            }
+        }
+
+    /**
+     * Opens the children of this folder for batched reading. Nothing is read here (except the
+     * first window of a SAF cursor).
+     * File-s are read through a directory stream (names are not collected into one array -
+     * below API 26 File.list() is used), SAF folders through ONE children-query, which cursor is
+     * read window by window.
+     * @param context context to reach content resolver
+     * @param signal cancellation signal of the load, or null
+     * @param batchSize maximal number of children in one batch
+     * @return opened listing (empty for files and for missing DataFile-s) - it should be closed
+     */
+    Listing openListing( Context context, CancellationSignal signal, int batchSize )
+        {
         if ( file != null )
             {
-            File[] files = file.listFiles(); // It cannot be null?? @NotNull denotes it
-            dataFiles = new DataFile[files.length];
-            for (int i = 0; i < files.length; i++)
+            backendCalls.incrementAndGet();
+            if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O )
                 {
-                dataFiles[i] = new DataFile(files[i]);
+                try
+                    {
+                    return new DirectoryStreamListing( file, signal, batchSize );
+                    }
+                catch ( IOException | RuntimeException e )
+                    {
+                    Log.w( "DATAFILE", "Directory stream of " + file + " cannot be opened: " + e );
+                    }
                 }
+            String[] names = file.list();
+            return new NameListing( file, ( names == null ) ? new String[0] : names,
+                    signal, batchSize );
             }
 
-        if ( documentFile != null )
+        if ( documentUri != null )
             {
-            DocumentFile[] documentFiles = documentFile.listFiles(); // It cannot be null??
-            // @NotNull denotes it
-            dataFiles = new DataFile[documentFiles.length];
-            for (int i = 0; i < documentFiles.length; i++)
+            // One query for all the children
+            Cursor cursor = queryChildren( context, signal );
+            if ( cursor != null )
+                return new CursorListing( context, this, cursor, signal, batchSize );
+
+            // Fallback: DocumentFile asks provider for each property separately
+            backendCalls.incrementAndGet();
+            return new DocumentFileListing( getDocumentFile().listFiles(), signal, batchSize );
+            }
+
+        return new NameListing( null, new String[0], signal, batchSize );
+        }
+
+    /**
+     * Children of a File folder through a directory stream (API 26+)
+     */
+    @RequiresApi( api = Build.VERSION_CODES.O )
+    private static class DirectoryStreamListing extends Listing
+        {
+        private final DirectoryStream<Path> stream;
+        private final Iterator<Path> iterator;
+
+        DirectoryStreamListing( File folder, CancellationSignal signal, int batchSize ) throws IOException
+            {
+            super( signal, batchSize );
+            stream = Files.newDirectoryStream( folder.toPath() );
+            iterator = stream.iterator();
+            }
+
+        @Override
+        List<DataFile> nextBatch()
+            {
+            List<DataFile> batch = new ArrayList<>( batchSize );
+            try
+                {
+                while ( batch.size() < batchSize && iterator.hasNext() )
+                    {
+                    throwIfCanceled( signal );
+                    DataFile dataFile = new DataFile( iterator.next().toFile() );
+                    dataFile.attributes = dataFile.readAttributes(); // snapshot at discovery
+                    batch.add( dataFile );
+                    }
+                }
+            catch ( DirectoryIteratorException e )
                 {
-                dataFiles[i] = new DataFile(documentFiles[i]);
+                Log.w( "DATAFILE", "Directory stream was broken: " + e );
                 }
+            return batch.isEmpty() ? null : batch;
             }
 
-        return dataFiles;
+        @Override
+        public void close()
+            {
+            FileOperations.closeSilently( stream );
+            }
+        }
+
+    /**
+     * Children of a File folder by their names (below API 26)
+     */
+    private static class NameListing extends Listing
+        {
+        private final File folder;
+        private final String[] names;
+        private int next = 0;
+
+        NameListing( File folder, String[] names, CancellationSignal signal, int batchSize )
+            {
+            super( signal, batchSize );
+            this.folder = folder;
+            this.names = names;
+            }
+
+        @Override
+        List<DataFile> nextBatch()
+            {
+            if ( next >= names.length )
+                return null;
+
+            List<DataFile> batch = new ArrayList<>( Math.min( batchSize, names.length - next ));
+            while ( batch.size() < batchSize && next < names.length )
+                {
+                throwIfCanceled( signal );
+                DataFile dataFile = new DataFile( new File( folder, names[next] ));
+                names[next++] = null; // name is not needed any more
+                dataFile.attributes = dataFile.readAttributes(); // snapshot at discovery
+                batch.add( dataFile );
+                }
+            return batch;
+            }
+        }
+
+    /**
+     * Children of a SAF folder from the children-query.
+     * Cross-process cursors are filled window by window, as the rows are read - only one
+     * window is in memory.
+     */
+    private static class CursorListing extends Listing
+        {
+        private final Context context;
+        private final DataFile parent;
+        private final Cursor cursor;
+        private boolean finished = false;
+
+        CursorListing( Context context, DataFile parent, Cursor cursor,
+                       CancellationSignal signal, int batchSize )
+            {
+            super( signal, batchSize );
+            this.context = context;
+            this.parent = parent;
+            this.cursor = cursor;
+            }
+
+        @Override
+        List<DataFile> nextBatch()
+            {
+            if ( finished )
+                return null;
+
+            List<DataFile> batch = new ArrayList<>( batchSize );
+            try
+                {
+                while ( batch.size() < batchSize )
+                    {
+                    if ( !cursor.moveToNext() )
+                        {
+                        finished = true;
+                        break;
+                        }
+                    throwIfCanceled( signal );
+                    Uri childUri = DocumentsContract.buildDocumentUriUsingTree( parent.documentUri,
+                            cursor.getString( 0 ));
+                    batch.add( new DataFile( context, parent, childUri, attributesFromCursor( cursor )));
+                    }
+                }
+            catch ( OperationCanceledException oce )
+                {
+                throw oce; // Load was cancelled - this is not an error of the provider
+                }
+            catch ( Exception e )
+                {
+                // Provider died during reading - rows read so far are returned
+                Log.w( "DATAFILE", "Children of " + parent.documentUri + " cannot be read: " + e );
+                finished = true;
+                }
+            return batch.isEmpty() ? null : batch;
+            }
+
+        @Override
+        public void close()
+            {
+            FileOperations.closeSilently( cursor );
+            }
+        }
+
+    /**
+     * Children of a SAF folder from DocumentFile.listFiles() (fallback, if query is not
+     * supported)
+     */
+    private static class DocumentFileListing extends Listing
+        {
+        private final DocumentFile[] documentFiles;
+        private int next = 0;
+
+        DocumentFileListing( DocumentFile[] documentFiles, CancellationSignal signal, int batchSize )
+            {
+            super( signal, batchSize );
+            this.documentFiles = documentFiles;
+            }
+
+        @Override
+        List<DataFile> nextBatch()
+            {
+            if ( next >= documentFiles.length )
+                return null;
+
+            List<DataFile> batch = new ArrayList<>( Math.min( batchSize, documentFiles.length - next ));
+            while ( batch.size() < batchSize && next < documentFiles.length )
+                {
+                throwIfCanceled( signal );
+                DataFile dataFile = new DataFile( documentFiles[next] );
+                documentFiles[next++] = null;
+                dataFile.attributes = dataFile.readAttributes();
+                batch.add( dataFile );
+                }
+            return batch;
+            }
+        }
+
+    private static void throwIfCanceled( CancellationSignal signal )
+        {
+        if ( signal != null )
+            signal.throwIfCanceled();
+        }
+
+    /**
+     * Queries the children of a SAF (tree) folder by ONE DocumentsContract query.
+     * DocumentFile.listFiles() queries only the ids, and each getName(), isDirectory(),
+     * length() and lastModified() call is a new query through the provider.
+     * @param context context to reach content resolver
+     * @param signal cancellation signal, or null
+     * @return cursor of CHILD_PROJECTION rows, or null if folder cannot be queried this way
+     */
+    private Cursor queryChildren( Context context, CancellationSignal signal )
+        {
+        Uri childrenUri = getChildrenUri();
+        if ( childrenUri == null )
+            return null;
+
+        try
+            {
+            backendCalls.incrementAndGet();
+            return context.getContentResolver().query( childrenUri, CHILD_PROJECTION,
+                    null, null, null, signal );
+            }
+        catch ( OperationCanceledException oce )
+            {
+            throw oce; // Load was cancelled - this is not an error of the provider
+            }
+        catch ( Exception e )
+            {
+            // Provider doesn't support children-query - DocumentFile is used instead
+            Log.w( "DATAFILE", "Children of " + documentUri + " cannot be queried: " + e );
+            return null;
+            }
+        }
+
+    /**
+     * Child of this folder with a known snapshot - without any I/O.
+     * Used to create DataFile-s of compact rows (check CompactRows) again.
+     * @param context context to reach content resolver (SAF only)
+     * @param name name of the child (File-s)
+     * @param documentId document id of the child (SAF)
+     * @param attributes attribute snapshot of the child
+     * @return the child
+     */
+    DataFile createChild( Context context, String name, String documentId, Attributes attributes )
+        {
+        DataFile child;
+        if ( file != null )
+            child = new DataFile( new File( file, name ));
+        else
+            child = new DataFile( context, this,
+                    DocumentsContract.buildDocumentUriUsingTree( documentUri, documentId ),
+                    attributes );
+        child.attributes = attributes;
+        return child;
         }
 
     public DataFile createFolder(String folderName)
@@ -223,40 +1021,56 @@ class DataFile
                 }
             }
 
-        else if ( documentFile != null && documentFile.isDirectory() )
+        else if ( documentUri != null && isDirectory() )
             {
-            DocumentFile newFolder = documentFile.createDirectory( folderName );
+            DocumentFile newFolder = getDocumentFile().createDirectory( folderName );
             if ( newFolder != null )
                 {
-                return new DataFile( newFolder );
+                return new DataFile( this, newFolder );
                 }
             }
 
         return null;
         }
 
-    public boolean createFile(String fileName)
+    /**
+     * Creates a new (empty) file inside this folder
+     * @param fileName name of the new file
+     * @return the new file, or null if it cannot be created
+     */
+    public DataFile createFile(String fileName)
+        {
+        return createFile( fileName, "text/plain" );
+        }
+
+    /**
+     * Creates a new (empty) file inside this folder
+     * @param fileName name of the new file
+     * @param mimeType mime type of the new file (SAF only - provider can add an extension by it)
+     * @return the new file, or null if it cannot be created
+     */
+    DataFile createFile(String fileName, String mimeType)
         {
         if ( file != null && file.isDirectory() )
             {
             try
                 {
                 File newFile = new File( file, fileName );
-                return newFile.createNewFile();
+                return newFile.createNewFile() ? new DataFile( newFile ) : null;
                 }
             catch (IOException e)
                 {
-                return false;
+                return null;
                 }
             }
 
-        else if ( documentFile != null && documentFile.isDirectory() )
+        else if ( documentUri != null && isDirectory() )
             {
-            DocumentFile newFile = documentFile.createFile("text/plain", fileName);
-            return newFile != null;
+            DocumentFile newFile = getDocumentFile().createFile(mimeType, fileName);
+            return ( newFile != null ) ? new DataFile( this, newFile ) : null;
             }
 
-        return false;
+        return null;
         }
 
     @Override
@@ -283,12 +1097,12 @@ class DataFile
 
         // file IS null, but we don't know anything about dataFile.file
 
-        if ( documentFile != null )
+        if ( documentUri != null )
             {
-            if ( otherDataFile.documentFile != null )
+            if ( otherDataFile.documentUri != null )
                 // documentFile.equals only checks whether they point to the same object
                 // let's compare document-uri-s
-                return documentFile.getUri().equals( otherDataFile.documentFile.getUri() );
+                return documentUri.equals( otherDataFile.documentUri );
             else
                 return false;
             }
@@ -297,7 +1111,7 @@ class DataFile
         // about dataFile.file or datafile.documentFile
 
         // Equals if both are null
-        return otherDataFile.file == null && otherDataFile.documentFile == null;
+        return otherDataFile.file == null && otherDataFile.documentUri == null;
         }
 
     }
@@ -0,0 +1,145 @@
+package digitalgarden.selectfilesafx.selectfile;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Resolves names inside SAF trees (and File folders) to document uris.
+ *
+ * DocumentFile.findFile() lists the whole folder, and asks the name of each child separately.
+ * Here a name is found by ONE query of ids and names, and nothing is cached: the folder can be
+ * changed by anybody since. Repeated lookups in the same folder (eg. one for each asset, one for
+ * each backup name) should use one listing snapshot instead (check AssetOperations).
+ *
+ * File folders (file:// uris, eg. the private folder) need no query, File can check the path
+ * directly.
+ */
+class DocumentPathResolver
+    {
+    private static final String[] NAME_PROJECTION = new String[] {
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME };
+
+    private static DocumentPathResolver instance;
+
+    private final Context context;
+
+
+    private DocumentPathResolver( Context context )
+        {
+        this.context = context.getApplicationContext();
+        }
+
+    static synchronized DocumentPathResolver get( Context context )
+        {
+        if ( instance == null )
+            instance = new DocumentPathResolver( context );
+        return instance;
+        }
+
+    /**
+     * Finds a direct child of a folder by its (exact) name - by ONE query of ids and names
+     * @param folderUri tree-uri (with or without document), or file-uri of a folder
+     * @param name name of the child
+     * @return document uri (or file-uri) of the (first) child, or null if it is missing
+     */
+    Uri queryChild( Uri folderUri, String name )
+        {
+        folderUri = toFolderDocumentUri( folderUri );
+        if ( folderUri == null )
+            return null;
+
+        if ( ContentResolver.SCHEME_FILE.equals( folderUri.getScheme() ))
+            {
+            File child = new File( folderUri.getPath(), name );
+            return child.exists() ? Uri.fromFile( child ) : null;
+            }
+
+        String id = searchChild( folderUri, name );
+        return ( id == null ) ? null : DocumentsContract.buildDocumentUriUsingTree( folderUri, id );
+        }
+
+    /**
+     * Renames a child
+     * @param childUri uri of the child (document uri or file-uri)
+     * @param newName new name
+     * @return new uri of the child, or null if it cannot be renamed
+     */
+    Uri renameChild( Uri childUri, String newName )
+        {
+        if ( ContentResolver.SCHEME_FILE.equals( childUri.getScheme() ))
+            {
+            File child = new File( childUri.getPath() );
+            File target = new File( child.getParentFile(), newName );
+            return child.renameTo( target ) ? Uri.fromFile( target ) : null;
+            }
+
+        try
+            {
+            return DocumentsContract.renameDocument( context.getContentResolver(), childUri, newName );
+            }
+        catch ( Exception e )
+            {
+            Log.w( "RESOLVER", "Cannot rename " + childUri + ": " + e );
+            return null;
+            }
+        }
+
+    /**
+     * Tree-uri without document is the root of the tree. Other uris are returned as they are.
+     * @return uri of the folder as a document, or null if it cannot be used
+     */
+    private static Uri toFolderDocumentUri( Uri folderUri )
+        {
+        if ( folderUri == null || !DocumentsContract.isTreeUri( folderUri ))
+            return folderUri;
+
+        try
+            {
+            DocumentsContract.getDocumentId( folderUri );
+            return folderUri; // tree-uri with document
+            }
+        catch ( IllegalArgumentException e )
+            {
+            return DocumentsContract.buildDocumentUriUsingTree( folderUri,
+                    DocumentsContract.getTreeDocumentId( folderUri ));
+            }
+        }
+
+    // Id of the (first) child with this name - one query
+    private String searchChild( Uri folderUri, String name )
+        {
+        Cursor cursor = null;
+        try
+            {
+            cursor = queryNames( folderUri );
+            while ( cursor != null && cursor.moveToNext() )
+                {
+                if ( name.equals( cursor.getString( 1 )))
+                    return cursor.getString( 0 );
+                }
+            }
+        catch ( Exception e )
+            {
+            Log.w( "RESOLVER", "Children of " + folderUri + " cannot be searched: " + e );
+            }
+        finally
+            {
+            FileOperations.closeSilently( cursor );
+            }
+        return null;
+        }
+
+    private Cursor queryNames( Uri folderUri )
+        {
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree( folderUri,
+                DocumentsContract.getDocumentId( folderUri ));
+        return context.getContentResolver().query( childrenUri, NAME_PROJECTION, null, null, null );
+        }
+    }
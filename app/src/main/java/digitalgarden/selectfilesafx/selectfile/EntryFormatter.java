@@ -0,0 +1,106 @@
+package digitalgarden.selectfilesafx.selectfile;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import androidx.core.os.ConfigurationCompat;
+import digitalgarden.selectfilesafx.R;
+
+/**
+ * Formats the data row ("date; N items; N bytes" or "date; N bytes") of the entries.
+ *
+ * Resource strings are read once for each locale, and formatter is shared by every entry.
+ * SimpleDateFormat is not thread-safe, so each thread gets its own copy - data can be formatted
+ * in the background, too.
+ */
+class EntryFormatter
+    {
+    private static volatile EntryFormatter instance;
+
+    private final Locale locale;
+    private final String separator;
+    private final String items;
+    private final String bytes;
+    private final String countPlaceholder;
+
+    private final ThreadLocal<SimpleDateFormat> dateFormat;
+
+
+    private EntryFormatter( Resources resources, Locale locale )
+        {
+        this.locale = locale;
+        this.separator = resources.getString( R.string.separator );
+        this.items = resources.getString( R.string.items );
+        this.bytes = resources.getString( R.string.bytes );
+        this.countPlaceholder = resources.getString( R.string.count_placeholder );
+
+        final String pattern = resources.getString( R.string.simple_date_format );
+        this.dateFormat = new ThreadLocal<SimpleDateFormat>()
+            {
+            @Override
+            protected SimpleDateFormat initialValue()
+                {
+                return new SimpleDateFormat( pattern, Locale.US );
+                }
+            };
+        }
+
+    /**
+     * Returns the shared formatter of the current locale
+     * @param context context to read resources
+     * @return formatter
+     */
+    static EntryFormatter get( Context context )
+        {
+        Resources resources = context.getResources();
+        Locale locale = ConfigurationCompat.getLocales( resources.getConfiguration() ).get( 0 );
+
+        EntryFormatter current = instance;
+        if ( current == null || !current.locale.equals( locale ))
+            {
+            current = new EntryFormatter( resources, locale );
+            instance = current;
+            }
+        return current;
+        }
+
+    /**
+     * Data of a folder
+     * @param lastModified last modification of the folder
+     * @param count item count, or DataFile.UNKNOWN_COUNT (placeholder is shown)
+     * @param total total size with subfolders, or null (placeholder is shown)
+     */
+    String formatFolder( long lastModified, int count, FolderSizeLoader.Total total )
+        {
+        StringBuilder builder = new StringBuilder( 48 );
+        builder.append( dateFormat.get().format( new Date( lastModified ))).append( separator );
+        if ( count == DataFile.UNKNOWN_COUNT )
+            builder.append( countPlaceholder );
+        else
+            builder.append( count );
+        builder.append( items ).append( separator );
+        if ( total == null )
+            builder.append( countPlaceholder );
+        else
+            builder.append( total.size );
+        return builder.append( bytes ).toString();
+        }
+
+    /**
+     * Data of a file
+     * @param lastModified last modification of the file
+     * @param size size in bytes
+     */
+    String formatFile( long lastModified, long size )
+        {
+        return new StringBuilder( 32 )
+                .append( dateFormat.get().format( new Date( lastModified )))
+                .append( separator )
+                .append( size )
+                .append( bytes ).toString();
+        }
+    }
@@ -145,11 +145,9 @@ public class FileOperations
 
         if ( folder != null )
             {
-            DocumentFile file = folder.findFile(fileName);
-            if ( file != null )
-                {
-                return file.getUri();
-                }
+            // findFile() would ask the name of each child separately - resolver queries ids and
+            // names together. Cache is not used: folder can be changed by anybody.
+            return DocumentPathResolver.get( context ).queryChild( folder.getUri(), fileName );
             }
         return null;
 
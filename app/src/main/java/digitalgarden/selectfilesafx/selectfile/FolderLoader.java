@@ -0,0 +1,154 @@
+package digitalgarden.selectfilesafx.selectfile;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads folders in the background.
+ *
+ * Only the latest load counts: each new load cancels the previous one (provider query is
+ * cancelled by its CancellationSignal, thread is interrupted), and results of a stale load
+ * never reach the UI. So user can tap through several levels quickly, loads do not queue up
+ * behind each other.
+ * Loads can publish partial results, so the list can grow while the folder is being read.
+ */
+class FolderLoader
+    {
+    /**
+     * Job can publish partial results during load (check Job.load())
+     * @param <T> result of the load
+     */
+    interface Publisher<T>
+        {
+        /**
+         * Sends a partial result to the UI thread. It is delivered only if load is still the
+         * latest one.
+         */
+        void publish( T partial );
+        }
+
+    /**
+     * One load. load() runs in the background, deliver() on the UI thread - but only if no
+     * newer load was started meanwhile.
+     * @param <T> result of the load
+     */
+    interface Job<T>
+        {
+        /**
+         * Background part. Should check signal between slow steps
+         * (signal.throwIfCanceled() or passing it to DataFile.listFiles())
+         * @param signal cancellation signal of this load
+         * @param publisher partial results can be sent to deliver() through it
+         * @return final result
+         */
+        T load( CancellationSignal signal, Publisher<T> publisher );
+
+        /**
+         * UI part. Called for each published partial result, and once for the final result.
+         * @param result partial or final result
+         * @param finished true for the final result
+         */
+        void deliver( T result, boolean finished );
+        }
+
+    private final Handler handler = new Handler( Looper.getMainLooper() );
+    // Cancelled loads end soon - new load should never wait for them
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    // Following fields are used only on the UI thread
+    private int generation = 0;
+    private Future<?> currentFuture;
+    private CancellationSignal currentSignal;
+
+
+    /**
+     * Starts a new load, and cancels the previous one. Should be called on the UI thread.
+     * @param job load to start
+     */
+    <T> void load( final Job<T> job )
+        {
+        cancel();
+
+        final int thisGeneration = ++generation;
+        final CancellationSignal signal = new CancellationSignal();
+        currentSignal = signal;
+
+        final Publisher<T> publisher = new Publisher<T>()
+            {
+            @Override
+            public void publish( T partial )
+                {
+                post( job, partial, false, thisGeneration, signal );
+                }
+            };
+
+        currentFuture = executor.submit( new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                final T result;
+                try
+                    {
+                    result = job.load( signal, publisher );
+                    }
+                catch ( OperationCanceledException oce )
+                    {
+                    Log.d( "FOLDERLOADER", "Load " + thisGeneration + " was cancelled" );
+                    return;
+                    }
+
+                post( job, result, true, thisGeneration, signal );
+                }
+            } );
+        }
+
+    // Sends result to the UI thread - it is dropped there, if a newer load was started meanwhile
+    private <T> void post( final Job<T> job, final T result, final boolean finished,
+                           final int thisGeneration, final CancellationSignal signal )
+        {
+        handler.post( new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                if ( thisGeneration == generation && !signal.isCanceled() )
+                    job.deliver( result, finished );
+                }
+            } );
+        }
+
+    /**
+     * Cancels current load (if any). Should be called on the UI thread.
+     */
+    void cancel()
+        {
+        if ( currentSignal != null )
+            {
+            currentSignal.cancel();
+            currentSignal = null;
+            }
+        if ( currentFuture != null )
+            {
+            currentFuture.cancel( true );
+            currentFuture = null;
+            }
+        }
+
+    /**
+     * Stops every load - should be called when activity is destroyed
+     */
+    void shutdown()
+        {
+        cancel();
+        executor.shutdownNow();
+        handler.removeCallbacksAndMessages( null );
+        }
+    }
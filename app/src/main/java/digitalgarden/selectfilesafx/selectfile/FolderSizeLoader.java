@@ -0,0 +1,397 @@
+package digitalgarden.selectfilesafx.selectfile;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Calculates total size and item count of folder rows (with all subfolders) in the background.
+ *
+ * Folder is walked by TreeWalker, totals are aggregated bottom-up: a folder is finished only
+ * after its subfolders, so its total is its files plus the totals of its subfolders.
+ * Like ChildCountLoader, rows show a placeholder until totals arrive, and listener is called
+ * (once for a burst of totals) on the UI thread.
+ *
+ * Totals are stored persistently (SharedPreferences), keyed by the identity AND the last
+ * modification of the folder, together with the list of its subfolders - later visits show
+ * totals without a walk. Folder's modification changes only if its direct children change, so
+ * a stored total is valid only if each stored subfolder (recursively) is unmodified, too. This
+ * check needs only one stat (or query) for each folder, no listing. Subfolders with a valid
+ * stored total are not walked again, so only changed subtrees are scanned.
+ * Folders without modification time (some SAF providers) are always walked.
+ * Stored totals are read on the background thread only.
+ */
+class FolderSizeLoader
+    {
+    /**
+     * Called on the UI thread, when new totals are available
+     */
+    interface OnSizesChangedListener
+        {
+        void onSizesChanged();
+        }
+
+    /**
+     * Total of a folder and all its subfolders
+     */
+    static class Total
+        {
+        final long size;    // bytes of all files
+        final int count;    // all files and folders
+
+        Total( long size, int count )
+            {
+            this.size = size;
+            this.count = count;
+            }
+        }
+
+    private static final String PREFERENCES = "folder_sizes";
+
+    // Stored totals are dropped above this - SharedPreferences are kept in memory
+    private static final int MAX_STORED = 4096;
+
+    // Folders walked at the same time (threads of the walk are in the shared pool)
+    private static final int THREADS = 1;
+
+    // Number of totals kept in memory
+    private static final int CACHE_SIZE = 1024;
+
+    private final Context context;
+    private final ForkJoinPool pool;
+    private final OnSizesChangedListener listener;
+    private final SharedPreferences preferences;
+
+    private final Handler handler = new Handler( Looper.getMainLooper() );
+    private final ExecutorService executor = Executors.newFixedThreadPool( THREADS );
+    // Cancels running walks at shutdown
+    private final CancellationSignal signal = new CancellationSignal();
+
+    // key@lastModified -> total
+    private final LruCache<String, Total> cache = new LruCache<>( CACHE_SIZE );
+    // keys under calculation - each folder is walked only once
+    private final Set<String> pending = Collections.synchronizedSet( new HashSet<String>() );
+
+    // Listener is already posted to the UI thread
+    private boolean notifyPosted = false;
+
+    private final Runnable notifyRunnable = new Runnable()
+        {
+        @Override
+        public void run()
+            {
+            notifyPosted = false;
+            listener.onSizesChanged();
+            }
+        };
+
+
+    /**
+     * @param context context to reach content resolver
+     * @param pool shared pool of the tree walks (check TreeWalker.createPool())
+     * @param listener called when new totals are available
+     */
+    FolderSizeLoader( Context context, ForkJoinPool pool, OnSizesChangedListener listener )
+        {
+        this.context = context.getApplicationContext();
+        this.pool = pool;
+        this.listener = listener;
+        this.preferences = this.context.getSharedPreferences( PREFERENCES, Context.MODE_PRIVATE );
+        }
+
+    private static String cacheKey( DataFile folder )
+        {
+        return folder.getKey() + "@" + folder.lastModified();
+        }
+
+    /**
+     * Returns total of the folder, if it is known (calculated in this session). If not, checks
+     * the stored total, or calculates it in the background - listener will be notified.
+     * Should be called on the UI thread.
+     * @param folder folder to calculate
+     * @return total or null if it is not known yet
+     */
+    Total getTotal( final DataFile folder )
+        {
+        final String key = cacheKey( folder );
+        Total total = cache.get( key );
+        if ( total != null )
+            return total;
+
+        if ( pending.add( key ) && !executor.isShutdown() )
+            {
+            executor.execute( new Runnable()
+                {
+                @Override
+                public void run()
+                    {
+                    try
+                        {
+                        Total result = readValid( folder );
+                        if ( result == null )
+                            result = calculate( folder );
+                        if ( result != null )
+                            cache.put( key, result );
+                        postNotify();
+                        }
+                    catch ( OperationCanceledException oce )
+                        {
+                        // shut down
+                        }
+                    catch ( RuntimeException e )
+                        {
+                        Log.w( "FOLDERSIZE", "Total of " + folder.getKey() + " cannot be calculated: " + e );
+                        }
+                    finally
+                        {
+                        pending.remove( key );
+                        }
+                    }
+                } );
+            }
+
+        return null;
+        }
+
+    /**
+     * Forgets total of this folder and of its ancestors - their totals contain this folder
+     * (eg. after creating a new item inside)
+     */
+    void invalidate( DataFile folder )
+        {
+        final Set<String> keys = new HashSet<>();
+        for ( DataFile ancestor = folder; ancestor != null && !ancestor.isNull();
+              ancestor = ancestor.getKnownParentFolder() )
+            keys.add( ancestor.getKey() );
+
+        // cache keys are key@lastModified
+        for ( String cached : cache.snapshot().keySet() )
+            {
+            if ( keys.contains( cached.substring( 0, cached.lastIndexOf( '@' ))))
+                cache.remove( cached );
+            }
+
+        // Stored totals are removed before the next check (executor runs tasks in order)
+        if ( !executor.isShutdown() )
+            {
+            executor.execute( new Runnable()
+                {
+                @Override
+                public void run()
+                    {
+                    SharedPreferences.Editor editor = preferences.edit();
+                    for ( String key : keys )
+                        editor.remove( key );
+                    editor.apply();
+                    }
+                } );
+            }
+        }
+
+    /**
+     * Walks the folder, and aggregates the totals bottom-up. Total of each walked subfolder is
+     * stored, too. This is a blocking call!
+     */
+    private Total calculate( DataFile root )
+        {
+        // folder key -> files and subfolders of the folder; each is used only by the task of
+        // its folder (subfolders are joined before their parent finishes)
+        final Map<String, Sum> sums = new ConcurrentHashMap<>();
+        // finished (or stored) subfolders
+        final Map<String, Total> totals = new ConcurrentHashMap<>();
+        // new totals - stored together at the end
+        final Map<String, String> values = new ConcurrentHashMap<>();
+
+        TreeWalker walker = new TreeWalker( context, pool, signal );
+        walker.setDescendFilter( new TreeWalker.Filter()
+            {
+            @Override
+            public boolean accept( DataFile dataFile, int depth )
+                {
+                Total stored = readValid( dataFile );
+                if ( stored == null )
+                    return true;
+                totals.put( dataFile.getKey(), stored ); // its subtree was not changed
+                return false;
+                }
+            } );
+
+        walker.walk( root, new TreeWalker.Visitor()
+            {
+            @Override
+            public void onBatch( DataFile folder, List<DataFile> batch, int depth )
+                {
+                Sum sum = sums.get( folder.getKey() );
+                if ( sum == null )
+                    {
+                    sum = new Sum();
+                    sums.put( folder.getKey(), sum );
+                    }
+
+                sum.count += batch.size();
+                for ( DataFile child : batch )
+                    {
+                    if ( child.isDirectory() )
+                        sum.subfolders.add( child );
+                    else
+                        sum.size += child.getAttributes().size;
+                    }
+                }
+
+            @Override
+            public void onFolderFinished( DataFile folder, int depth )
+                {
+                Sum sum = sums.remove( folder.getKey() );
+                long size = 0L;
+                int count = 0;
+                // subfolders are stored, too - they are checked before the total is used
+                StringBuilder subfolders = new StringBuilder();
+                if ( sum != null )
+                    {
+                    size = sum.size;
+                    count = sum.count;
+                    for ( DataFile subfolder : sum.subfolders )
+                        {
+                        // missing: loop or unreadable folder
+                        Total total = totals.remove( subfolder.getKey() );
+                        if ( total != null )
+                            {
+                            size += total.size;
+                            count += total.count;
+                            subfolders.append( ':' ).append( encodeSubfolder( subfolder ));
+                            }
+                        }
+                    }
+
+                Total total = new Total( size, count );
+                totals.put( folder.getKey(), total );
+                if ( folder.lastModified() != 0L )
+                    values.put( folder.getKey(), folder.lastModified() + ":" + total.size + ":" +
+                            total.count + subfolders );
+                }
+            } );
+
+        store( values );
+        return totals.get( root.getKey() );
+        }
+
+    // Files and subfolders of one folder
+    private static class Sum
+        {
+        long size;
+        int count;
+        final List<DataFile> subfolders = new ArrayList<>();
+        }
+
+    // Subfolder is stored as name (File-s) or name/document id (SAF) - both are encoded, so they
+    // cannot contain ':' or '/'
+    private static String encodeSubfolder( DataFile subfolder )
+        {
+        String documentId = subfolder.getDocumentId();
+        return ( documentId == null ) ? Uri.encode( subfolder.getName() ) :
+                Uri.encode( subfolder.getName() ) + "/" + Uri.encode( documentId );
+        }
+
+    /**
+     * Stored total, if the folder AND each of its stored subfolders (recursively) were not
+     * modified since. Only folders are checked, one stat (or query) for each.
+     * Should be called on the background thread.
+     * @return stored total, or null if it is missing or stale
+     */
+    private Total readValid( DataFile folder )
+        {
+        long lastModified = folder.lastModified();
+        if ( lastModified == 0L )
+            return null;
+
+        String value = preferences.getString( folder.getKey(), null );
+        if ( value == null )
+            return null;
+
+        // lastModified:size:count[:subfolder]...
+        String[] parts = value.split( ":" );
+        try
+            {
+            if ( parts.length < 3 || Long.parseLong( parts[0] ) != lastModified )
+                return null;
+
+            for ( int i = 3; i < parts.length; i++ )
+                {
+                signal.throwIfCanceled();
+                String[] subfolder = parts[i].split( "/" );
+                DataFile child = ( subfolder.length == 1 ) ?
+                        folder.createChild( context, Uri.decode( subfolder[0] ), null, null ) :
+                        folder.createChild( context, Uri.decode( subfolder[0] ),
+                                Uri.decode( subfolder[1] ), null );
+                if ( readValid( child ) == null )
+                    return null;
+                }
+
+            return new Total( Long.parseLong( parts[1] ), Integer.parseInt( parts[2] ));
+            }
+        catch ( NumberFormatException e )
+            {
+            // stored by an other version - calculated again
+            }
+        catch ( IllegalArgumentException e )
+            {
+            // subfolder cannot be created (eg. tree was revoked)
+            }
+        return null;
+        }
+
+    // One write for a walk
+    private void store( Map<String, String> values )
+        {
+        SharedPreferences.Editor editor = preferences.edit();
+        if ( preferences.getAll().size() + values.size() > MAX_STORED )
+            editor.clear(); // clear() is applied first, new values are kept
+        for ( Map.Entry<String, String> value : values.entrySet() )
+            editor.putString( value.getKey(), value.getValue() );
+        editor.apply();
+        }
+
+    // Totals can arrive in bursts - list is refreshed only once
+    private void postNotify()
+        {
+        handler.post( new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                if ( !notifyPosted && !executor.isShutdown() )
+                    {
+                    notifyPosted = true;
+                    handler.post( notifyRunnable );
+                    }
+                }
+            } );
+        }
+
+    /**
+     * Stops calculation - should be called when activity is destroyed
+     */
+    void shutdown()
+        {
+        signal.cancel();
+        executor.shutdownNow();
+        handler.removeCallbacksAndMessages( null );
+        }
+    }
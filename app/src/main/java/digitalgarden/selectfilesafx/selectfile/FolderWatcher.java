@@ -0,0 +1,214 @@
+package digitalgarden.selectfilesafx.selectfile;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Watches the visible folder, and reports its changes.
+ *
+ * File-based folders (private folder and its subfolders) are watched by FileObserver (inotify).
+ * SAF folders are watched through a small (id-only) cursor of their children, which is kept
+ * open during watching: most providers (eg. ExternalStorageProvider) watch the folder only while
+ * such a cursor is open. The ContentObserver is registered on the cursor itself - providers
+ * notify the uri set on the cursor (a non-tree children-uri), not the tree-based one we query.
+ *
+ * Events usually arrive in bursts (eg. create + modify + close). They are coalesced: listener is
+ * called only once, when no new event arrived for COALESCE_DELAY_MS.
+ */
+class FolderWatcher
+    {
+    /**
+     * Called on the UI thread, when the watched folder was changed
+     */
+    interface OnFolderChangedListener
+        {
+        void onFolderChanged( DataFile folder );
+        }
+
+    // Events inside this interval are reported as one change
+    private static final long COALESCE_DELAY_MS = 300L;
+
+    private static final int FILE_EVENTS = FileObserver.CREATE | FileObserver.DELETE |
+            FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE |
+            FileObserver.ATTRIB | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private final Context context;
+    private final OnFolderChangedListener listener;
+    private final Handler handler = new Handler( Looper.getMainLooper() );
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    // Following fields are used only on the UI thread
+    private DataFile folder;
+    private FileObserver fileObserver;
+    private ContentObserver contentObserver;
+    private Cursor notificationCursor;
+
+    private final Runnable changedRunnable = new Runnable()
+        {
+        @Override
+        public void run()
+            {
+            if ( folder != null )
+                listener.onFolderChanged( folder );
+            }
+        };
+
+
+    FolderWatcher( Context context, OnFolderChangedListener listener )
+        {
+        this.context = context.getApplicationContext();
+        this.listener = listener;
+        }
+
+    /**
+     * Starts watching the folder - previous folder is not watched any more.
+     * Should be called on the UI thread.
+     * @param folder folder to watch
+     */
+    void watch( DataFile folder )
+        {
+        if ( folder.equals( this.folder ) )
+            return;
+
+        stop();
+        this.folder = folder;
+
+        File file = folder.getFile();
+        if ( file != null )
+            {
+            fileObserver = createFileObserver( file );
+            fileObserver.startWatching();
+            return;
+            }
+
+        Uri childrenUri = folder.getChildrenUri();
+        if ( childrenUri != null )
+            keepNotificationCursor( folder, childrenUri );
+        }
+
+    @SuppressWarnings("deprecation") // FileObserver( File ) needs API 29
+    private FileObserver createFileObserver( File file )
+        {
+        if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q )
+            {
+            return new FileObserver( file, FILE_EVENTS )
+                {
+                @Override
+                public void onEvent( int event, String path )
+                    {
+                    changed();
+                    }
+                };
+            }
+
+        return new FileObserver( file.getPath(), FILE_EVENTS )
+            {
+            @Override
+            public void onEvent( int event, String path )
+                {
+                changed();
+                }
+            };
+        }
+
+    /**
+     * Provider watches the folder while its cursor is open, and notifies the cursor.
+     * Only ids are queried (in the background), this is the smallest possible cursor.
+     */
+    private void keepNotificationCursor( final DataFile watchedFolder, final Uri childrenUri )
+        {
+        executor.execute( new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                Cursor cursor = null;
+                try
+                    {
+                    cursor = context.getContentResolver().query( childrenUri,
+                            new String[] { DocumentsContract.Document.COLUMN_DOCUMENT_ID },
+                            null, null, null );
+                    }
+                catch ( Exception e )
+                    {
+                    Log.w( "FOLDERWATCHER", "Cannot watch " + childrenUri + ": " + e );
+                    }
+
+                final Cursor queried = cursor;
+                handler.post( new Runnable()
+                    {
+                    @Override
+                    public void run()
+                        {
+                        // Folder could be changed meanwhile
+                        if ( queried != null && watchedFolder == folder && notificationCursor == null )
+                            {
+                            notificationCursor = queried;
+                            contentObserver = new ContentObserver( handler )
+                                {
+                                @Override
+                                public void onChange( boolean selfChange )
+                                    {
+                                    changed();
+                                    }
+                                };
+                            notificationCursor.registerContentObserver( contentObserver );
+                            }
+                        else
+                            FileOperations.closeSilently( queried );
+                        }
+                    } );
+                }
+            } );
+        }
+
+    // Events could arrive on any thread
+    private void changed()
+        {
+        handler.removeCallbacks( changedRunnable );
+        handler.postDelayed( changedRunnable, COALESCE_DELAY_MS );
+        }
+
+    /**
+     * Stops watching. Should be called on the UI thread.
+     */
+    void stop()
+        {
+        if ( fileObserver != null )
+            {
+            fileObserver.stopWatching();
+            fileObserver = null;
+            }
+        if ( contentObserver != null )
+            {
+            notificationCursor.unregisterContentObserver( contentObserver );
+            contentObserver = null;
+            }
+        FileOperations.closeSilently( notificationCursor );
+        notificationCursor = null;
+
+        handler.removeCallbacks( changedRunnable );
+        folder = null;
+        }
+
+    /**
+     * Stops watching for good - should be called when activity is destroyed
+     */
+    void shutdown()
+        {
+        stop();
+        executor.shutdown();
+        }
+    }
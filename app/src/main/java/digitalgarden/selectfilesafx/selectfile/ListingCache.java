@@ -0,0 +1,133 @@
+package digitalgarden.selectfilesafx.selectfile;
+
+import android.content.ComponentCallbacks2;
+import android.util.LruCache;
+
+import java.util.List;
+
+/**
+ * LRU cache of the recently visited folders.
+ *
+ * Listing (sorted entries) and scroll position is stored for each folder, keyed by the identity
+ * of the folder (DataFile.getKey()). Revisited folders (BACK, HOME) can be shown immediately
+ * from the cache, while they are listed again in the background.
+ *
+ * Size of the cache is counted in kilobytes (measured by SelectFileEntry.getRetainedBytes()),
+ * and it is limited by the available heap.
+ * It is trimmed, when the system is low on memory (check trimMemory()).
+ */
+class ListingCache
+    {
+    // Cache can use this part of the heap
+    private static final int HEAP_FRACTION = 8;
+
+    /**
+     * Cached data of one folder
+     */
+    static class Listing
+        {
+        final List<SelectFileEntry> entries; // never changed after caching
+        final SelectFileEntry.SortMode sortMode; // order of the entries
+        final int kilobytes;                 // retained heap of the entries
+        int position = 0;                    // first visible entry
+        int top = 0;                         // offset of the first visible entry
+
+        Listing( List<SelectFileEntry> entries, SelectFileEntry.SortMode sortMode )
+            {
+            this.entries = entries;
+            this.sortMode = sortMode;
+
+            long bytes = 0L;
+            for ( SelectFileEntry entry : entries )
+                bytes += entry.getRetainedBytes() + 4; // + slot of the list
+            this.kilobytes = (int) Math.min( bytes / 1024L + 1L, Integer.MAX_VALUE );
+            }
+        }
+
+    private final LruCache<String, Listing> cache;
+
+
+    ListingCache()
+        {
+        long maxKilobytes = Runtime.getRuntime().maxMemory() / HEAP_FRACTION / 1024L;
+        cache = new LruCache<String, Listing>( (int) Math.min( maxKilobytes, Integer.MAX_VALUE ))
+            {
+            @Override
+            protected int sizeOf( String key, Listing listing )
+                {
+                return listing.kilobytes;
+                }
+            };
+        }
+
+    /**
+     * Returns cached listing of the folder, or null if folder is not cached
+     */
+    Listing get( DataFile folder )
+        {
+        return cache.get( folder.getKey() );
+        }
+
+    /**
+     * Stores a new listing of the folder. Scroll position of the previous listing is kept.
+     * @param folder listed folder
+     * @param entries sorted entries of the folder
+     * @param sortMode order of the entries
+     */
+    void put( DataFile folder, List<SelectFileEntry> entries, SelectFileEntry.SortMode sortMode )
+        {
+        Listing listing = new Listing( entries, sortMode );
+        Listing previous = cache.get( folder.getKey() );
+        if ( previous != null )
+            {
+            listing.position = previous.position;
+            listing.top = previous.top;
+            }
+        cache.put( folder.getKey(), listing );
+        }
+
+    /**
+     * Stores the scroll position of a cached folder
+     */
+    void savePosition( DataFile folder, int position, int top )
+        {
+        Listing listing = cache.get( folder.getKey() );
+        if ( listing != null )
+            {
+            listing.position = position;
+            listing.top = top;
+            }
+        }
+
+    /**
+     * Forgets the listing of the folder
+     */
+    void invalidate( DataFile folder )
+        {
+        cache.remove( folder.getKey() );
+        }
+
+    /**
+     * Frees memory according to ComponentCallbacks2.onTrimMemory() level. Levels are not
+     * ordered: RUNNING_* levels come while the app is running, the others in the background
+     * (UI_HIDDEN is above RUNNING_LOW, but it says nothing about memory).
+     */
+    void trimMemory( int level )
+        {
+        switch ( level )
+            {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                cache.trimToSize( cache.maxSize() / 2 );
+                break;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                cache.evictAll();
+                break;
+            default:
+                // RUNNING_MODERATE, UI_HIDDEN: cache is kept - returning to the app is fast
+                break;
+            }
+        }
+    }
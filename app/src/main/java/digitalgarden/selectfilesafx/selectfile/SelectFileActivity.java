@@ -6,18 +6,30 @@ import android.content.Intent;
 import android.content.UriPermission;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
 import android.widget.EditText;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import androidx.activity.result.ActivityResultCallback;
 import androidx.activity.result.ActivityResultLauncher;
@@ -26,6 +38,11 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.documentfile.provider.DocumentFile;
 import androidx.lifecycle.ViewModel;
 import androidx.lifecycle.ViewModelProvider;
+import androidx.recyclerview.widget.DividerItemDecoration;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.SimpleItemAnimator;
+import digitalgarden.selectfilesafx.BuildConfig;
 import digitalgarden.selectfilesafx.R;
 
 public class SelectFileActivity extends AppCompatActivity
@@ -44,15 +61,89 @@ public class SelectFileActivity extends AppCompatActivity
 
         DataFile currentFolder = null; // null means, this is a fresh start
         DataFile previousDir = null;
+
+        // Recently visited folders
+        final ListingCache listingCache = new ListingCache();
+
+        // Order of the entries (inside the same type)
+        SelectFileEntry.SortMode sortMode = SelectFileEntry.SortMode.NAME;
+
+        // Filter text is searched in the subfolders, too (check search())
+        boolean searchSubfolders = false;
+
+        // Entry picked by a long press - it can be copied or moved into an other folder
+        // (check transfer())
+        DataFile transferSource = null;
         }
 
     private Variables variables;
 
     // UI
-    private ListView list;
+    private RecyclerView list;
+    private LinearLayoutManager layoutManager;
+    private SelectFileAdapter adapter; // created once, lists are updated by diffs
     private EditText filter;
     private TextView ending;
 
+    // Folders are listed in the background
+    private final FolderLoader folderLoader = new FolderLoader();
+    // Filter is applied, when no key was typed for this interval
+    private static final long FILTER_DELAY_MS = 150L;
+    private final Handler filterHandler = new Handler( Looper.getMainLooper() );
+    private final Runnable filterRunnable = new Runnable()
+        {
+        @Override
+        public void run()
+            {
+            String text = filter.getText().toString();
+            if ( variables.searchSubfolders && text.length() > 0 )
+                {
+                search( text );
+                return;
+                }
+            if ( searching )
+                endSearch(); // folder is filtered by the text, too
+            else
+                adapter.getFilter().filter( text );
+            // if ( s.length() > 0 )
+            //     list.setSelectionFromTop( variables.positionOfFileSection, 0 );
+            }
+        };
+
+    // Saved position is restored after populate() - but not at fresh start
+    private boolean restorePosition = false;
+
+    // Data of the visible folder - needed to list it again (check refresh())
+    private boolean currentMainFolder;
+    private List<SelectFileEntry> currentCommands;
+
+    // Results of search() are visible instead of the folder
+    private boolean searching = false;
+
+    // First (progressive) listing of the folder is not delivered yet - a refresh would
+    // cancel it, and its position would not be restored. Refresh waits for it.
+    private boolean progressiveLoading = false;
+    private boolean refreshPending = false;
+
+    // Visible folder is listed again, if it changes
+    private FolderWatcher folderWatcher;
+
+    // Item count of folders is counted in the background
+    private ChildCountLoader childCountLoader;
+
+    // Total size of folders (with subfolders) is calculated in the background
+    private FolderSizeLoader folderSizeLoader;
+
+    // Threads of the tree walks (folder sizes, search and transfer) - shared by all walks
+    private ForkJoinPool walkPool;
+
+    // Copy or move in progress (null, if there is none) - only one at a time
+    private TransferEngine transferEngine;
+    private final ExecutorService transferExecutor = Executors.newSingleThreadExecutor();
+    // Progress and result of the transfer arrive here; progress is shown once for a burst
+    private final Handler transferHandler = new Handler( Looper.getMainLooper() );
+    private final AtomicBoolean progressPosted = new AtomicBoolean( false );
+
 
     ActivityResultLauncher<Uri> launchSAFOPenDocumentTree = registerForActivityResult(
             new ActivityResultContracts.OpenDocumentTree(),
@@ -68,8 +159,9 @@ public class SelectFileActivity extends AppCompatActivity
                                         Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
 
                             // go to the newly selected dir
+                            // (application context: DataFile can be kept by the cache)
                         populate(new DataFile(
-                                DocumentFile.fromTreeUri(SelectFileActivity.this, uri)));
+                                DocumentFile.fromTreeUri(getApplicationContext(), uri)));
                         }
                     }
                 });
@@ -90,17 +182,54 @@ public class SelectFileActivity extends AppCompatActivity
         list = findViewById( R.id.list );
         filter = findViewById( R.id.filter );
         ending = findViewById( R.id.ending );
+
+        childCountLoader = new ChildCountLoader( this, new ChildCountLoader.OnCountsChangedListener()
+            {
+            @Override
+            public void onCountsChanged()
+                {
+                adapter.refreshRows();
+                }
+            } );
+
+        walkPool = TreeWalker.createPool();
+
+        folderSizeLoader = new FolderSizeLoader( this, walkPool, new FolderSizeLoader.OnSizesChangedListener()
+            {
+            @Override
+            public void onSizesChanged()
+                {
+                adapter.refreshRows();
+                }
+            } );
+
+        folderWatcher = new FolderWatcher( this, new FolderWatcher.OnFolderChangedListener()
+            {
+            @Override
+            public void onFolderChanged( DataFile folder )
+                {
+                variables.listingCache.invalidate( folder );
+                childCountLoader.invalidate( folder );
+                folderSizeLoader.invalidate( folder );
+                refresh();
+                }
+            } );
+
+        layoutManager = new LinearLayoutManager( this );
+        list.setLayoutManager( layoutManager );
+        list.addItemDecoration( new DividerItemDecoration( this, DividerItemDecoration.VERTICAL ));
+        // Rows are rebound when item counts arrive - they should not blink
+        ((SimpleItemAnimator) list.getItemAnimator()).setSupportsChangeAnimations( false );
+
         // Elem kiválasztásakor
         // DIR - továbblépünk a könyvtárra
         // PARENT_DIR - eggyel vissza - ilyenkor a jelenlegi könyvtár lesz a lista első eleme
         // FILE (minden más) - a kiválasztott file adataival (setMonthlyData) visszatérünk
-        list.setOnItemClickListener( new AdapterView.OnItemClickListener()
+        adapter = new SelectFileAdapter( this, childCountLoader, folderSizeLoader, new SelectFileAdapter.OnEntryClickListener()
             {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id)
+            public void onEntryClick( SelectFileEntry entry, View view )
                 {
-                SelectFileEntry entry = (SelectFileEntry) list.getItemAtPosition(position);
-
                 switch (entry.getType())
                     {
                     case SelectFileEntry.FOLDER:
@@ -219,7 +348,23 @@ public class SelectFileActivity extends AppCompatActivity
                         break;
                     }
                 }
+
+            @Override
+            public boolean onEntryLongClick( SelectFileEntry entry )
+                {
+                // Folders and files can be copied or moved (check transfer())
+                if ( entry.getType() != SelectFileEntry.FOLDER && entry.getType() != SelectFileEntry.FILE )
+                    return false;
+
+                variables.transferSource = entry.getDataFile();
+                Toast.makeText( SelectFileActivity.this,
+                        getString( R.string.transfer_source_selected, entry.getDataFile().getName() ),
+                        Toast.LENGTH_LONG ).show();
+                invalidateOptionsMenu();
+                return true;
+                }
             } );
+        list.setAdapter( adapter );
 
         // szöveg beírásakor szűrjük a listát
         // erre két lehetőség lenne
@@ -231,13 +376,9 @@ public class SelectFileActivity extends AppCompatActivity
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count)
                 {
-                SelectFileAdapter adapter = ((SelectFileAdapter)list.getAdapter());
-                if (adapter != null)
-                    {
-                    adapter.getFilter().filter(s);
-                    // if ( s.length() > 0 )
-                    //     list.setSelectionFromTop( variables.positionOfFileSection, 0 );
-                    }
+                // Rapid typing: only the last text is filtered
+                filterHandler.removeCallbacks( filterRunnable );
+                filterHandler.postDelayed( filterRunnable, FILTER_DELAY_MS );
                 }
 
             @Override
@@ -262,28 +403,458 @@ public class SelectFileActivity extends AppCompatActivity
      * Folder is null for the main folder
      * Main folder contains together the data of the private folder (root folder) AND the
      * staring point of each linked folder.
+     * Command entries need no folder I/O, they are shown immediately. Folder is listed in the
+     * background, and its entries are merged into the list chunk by chunk. Each populate()
+     * cancels the previous, unfinished one. Only the latest folder reaches the list (check
+     * FolderLoader).
+     * Recently visited folders are shown immediately from the cache (with their scroll
+     * position), and they are listed again in the background.
      * @param folder folder to populate
      */
     private void populate( DataFile folder )
         {
-        List<SelectFileEntry> entries = new ArrayList<SelectFileEntry>();
+        if ( !searching )
+            saveCurrentPosition(); // position of the results is not kept
+        searching = false;
 
         // app's private folder
-        DataFile privateFolder = new DataFile( FileOperations.getPrivateFolder(this) );
+        final DataFile privateFolder = new DataFile( FileOperations.getPrivateFolder(this) );
 
         // main folder contains the private folder AND each linked folder
         // populate( folder )
         // folder is null - this is the starting point
         // folder is DataFile which isNull - BACK from linked folders
         // folder is privateFolder - BACK from direct folders of private folder and HOME
-        boolean mainFolder = ( folder == null || folder.isNull() || (folder.equals(privateFolder)));
+        final boolean mainFolder = ( folder == null || folder.isNull() || (folder.equals(privateFolder)));
+        final DataFile listedFolder = mainFolder ? privateFolder : folder;
+
+        final List<SelectFileEntry> commands = listCommands( mainFolder, listedFolder, privateFolder );
+        showCommands( listedFolder, commands );
+        currentMainFolder = mainFolder;
+        currentCommands = commands;
+
+        ListingCache.Listing cached = variables.listingCache.get( listedFolder );
+        if ( cached != null )
+            showCached( cached );
+
+        // Cached listing is revalidated: partial lists would shrink it
+        loadFolder( mainFolder, listedFolder, commands, cached == null );
+        }
+
+    /**
+     * Lists the visible folder again (eg. after a change), list is updated only when
+     * listing is ready. Scroll position is kept.
+     */
+    private void refresh()
+        {
+        if ( currentCommands == null || searching )
+            return;
+
+        if ( progressiveLoading )
+            refreshPending = true; // listed again, when the first listing is delivered
+        else
+            loadFolder( currentMainFolder, variables.currentFolder, currentCommands, false );
+        }
+
+    /**
+     * Lists folder in the background (check listFolder())
+     * @param mainFolder true if main folder is populated
+     * @param folder folder to list (private folder for the main folder)
+     * @param commands sorted command entries (already shown)
+     * @param progressive true: partial lists are shown, and position is restored at the end;
+     *                    false: list is updated only at the end, position is not changed
+     */
+    private void loadFolder( final boolean mainFolder, final DataFile folder,
+                             final List<SelectFileEntry> commands, final boolean progressive )
+        {
+        final SelectFileEntry.SortMode sortMode = variables.sortMode;
+        progressiveLoading = progressive;
+        refreshPending = false;
+
+        folderLoader.load( new FolderLoader.Job<List<SelectFileEntry>>()
+            {
+            @Override
+            public List<SelectFileEntry> load( CancellationSignal signal,
+                                               FolderLoader.Publisher<List<SelectFileEntry>> publisher )
+                {
+                return listFolder( mainFolder, folder, commands, sortMode, signal,
+                        progressive ? publisher : null );
+                }
+
+            @Override
+            public void deliver( List<SelectFileEntry> entries, boolean finished )
+                {
+                // Sort mode was changed during load
+                entries = sortedCopy( entries, sortMode );
+
+                if ( finished )
+                    {
+                    variables.listingCache.put( folder, entries, variables.sortMode );
+                    progressiveLoading = false;
+                    }
+                showEntries( entries, finished && progressive );
+
+                // Folder changed during the first listing
+                if ( finished && refreshPending )
+                    refresh();
+                }
+            } );
+        }
+
+    /**
+     * Returns entries in the current sort order
+     * @param entries sorted entries
+     * @param sortMode order of entries
+     * @return entries (if they are in the current order), or a newly sorted copy
+     */
+    private List<SelectFileEntry> sortedCopy( List<SelectFileEntry> entries, SelectFileEntry.SortMode sortMode )
+        {
+        if ( sortMode == variables.sortMode )
+            return entries;
+
+        List<SelectFileEntry> sorted = new ArrayList<SelectFileEntry>( entries );
+        SelectFileEntry.sort( sorted, variables.sortMode );
+        return sorted;
+        }
+
+    /**
+     * Changes the order of the entries. Entries in the memory are sorted again - folder is not
+     * listed, no I/O is needed.
+     * @param sortMode new sort mode
+     */
+    private void setSortMode( SelectFileEntry.SortMode sortMode )
+        {
+        SelectFileEntry.SortMode previousSortMode = variables.sortMode;
+        variables.sortMode = sortMode;
+
+        List<SelectFileEntry> entries = sortedCopy( adapter.getEntries(), previousSortMode );
+        adapter.submitEntries( entries, filter.getText().toString(), null );
+
+        // Search results are not the listing of the folder - cached listing is sorted when shown
+        if ( !searching )
+            variables.listingCache.put( variables.currentFolder, entries, sortMode );
+        }
+
+    @Override
+    public boolean onCreateOptionsMenu( Menu menu )
+        {
+        getMenuInflater().inflate( R.menu.select_file_sort_menu, menu );
+        getMenuInflater().inflate( R.menu.select_file_search_menu, menu );
+        getMenuInflater().inflate( R.menu.select_file_transfer_menu, menu );
+        return true;
+        }
+
+    @Override
+    public boolean onPrepareOptionsMenu( Menu menu )
+        {
+        int id;
+        switch ( variables.sortMode )
+            {
+            case DATE:
+                id = R.id.menu_sort_by_date;
+                break;
+            case SIZE:
+                id = R.id.menu_sort_by_size;
+                break;
+            case TYPE:
+                id = R.id.menu_sort_by_type;
+                break;
+            default:
+                id = R.id.menu_sort_by_name;
+            }
+        menu.findItem( id ).setChecked( true );
+        menu.findItem( R.id.menu_search_subfolders ).setChecked( variables.searchSubfolders );
+
+        boolean transferring = transferEngine != null;
+        boolean picked = variables.transferSource != null && !transferring;
+        menu.findItem( R.id.menu_copy_here ).setVisible( picked );
+        menu.findItem( R.id.menu_move_here ).setVisible( picked );
+        menu.findItem( R.id.menu_pause_transfer ).setVisible( transferring ).setTitle(
+                transferring && transferEngine.isPaused() ? R.string.menu_resume_transfer : R.string.menu_pause_transfer );
+        menu.findItem( R.id.menu_cancel_transfer ).setVisible( transferring );
+        return super.onPrepareOptionsMenu( menu );
+        }
+
+    @Override
+    public boolean onOptionsItemSelected( MenuItem item )
+        {
+        int id = item.getItemId();
+        if ( id == R.id.menu_sort_by_name )
+            setSortMode( SelectFileEntry.SortMode.NAME );
+        else if ( id == R.id.menu_sort_by_date )
+            setSortMode( SelectFileEntry.SortMode.DATE );
+        else if ( id == R.id.menu_sort_by_size )
+            setSortMode( SelectFileEntry.SortMode.SIZE );
+        else if ( id == R.id.menu_sort_by_type )
+            setSortMode( SelectFileEntry.SortMode.TYPE );
+        else if ( id == R.id.menu_search_subfolders )
+            {
+            variables.searchSubfolders = !variables.searchSubfolders;
+            filterHandler.removeCallbacks( filterRunnable );
+            filterRunnable.run();
+            }
+        else if ( id == R.id.menu_copy_here )
+            transfer( false );
+        else if ( id == R.id.menu_move_here )
+            transfer( true );
+        else if ( id == R.id.menu_pause_transfer && transferEngine != null )
+            {
+            if ( transferEngine.isPaused() )
+                transferEngine.resume();
+            else
+                transferEngine.pause();
+            invalidateOptionsMenu();
+            }
+        else if ( id == R.id.menu_cancel_transfer && transferEngine != null )
+            transferEngine.cancel();
+        else
+            return super.onOptionsItemSelected( item );
+
+        return true;
+        }
+
+    /**
+     * Copies or moves the picked entry (check onEntryLongClick()) into the visible folder, in
+     * the background. Progress is shown as subtitle, and the changed folders are listed again
+     * at the end.
+     * @param move true: entry is moved, false: entry is copied
+     */
+    private void transfer( final boolean move )
+        {
+        final DataFile source = variables.transferSource;
+        final DataFile targetFolder = variables.currentFolder;
+        if ( source == null || targetFolder == null || transferEngine != null )
+            return;
+        variables.transferSource = null;
+
+        final TransferEngine engine = new TransferEngine( this, walkPool, new TransferEngine.ProgressListener()
+            {
+            @Override
+            public void onFileProgress( DataFile file, long copied, long size )
+                {
+                // only the aggregate is shown
+                }
+
+            @Override
+            public void onProgress( final long copiedBytes, final long totalBytes,
+                                    final int finishedFiles, final int totalFiles )
+                {
+                if ( progressPosted.compareAndSet( false, true ))
+                    {
+                    transferHandler.post( new Runnable()
+                        {
+                        @Override
+                        public void run()
+                            {
+                            progressPosted.set( false );
+                            int percent = ( totalBytes == 0L ) ? 100 : (int) ( copiedBytes * 100L / totalBytes );
+                            showTransferStatus( getString( R.string.transfer_progress,
+                                    finishedFiles, totalFiles, percent ));
+                            }
+                        } );
+                    }
+                }
+            } );
+        transferEngine = engine;
+        invalidateOptionsMenu();
+
+        transferExecutor.execute( new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                String error = null;
+                try
+                    {
+                    if ( move )
+                        engine.move( source, targetFolder );
+                    else
+                        engine.copy( source, targetFolder );
+                    }
+                catch ( OperationCanceledException oce )
+                    {
+                    error = getString( R.string.transfer_cancelled );
+                    }
+                catch ( IOException | RuntimeException e )
+                    {
+                    Log.w( "SELECTFILE", "Transfer of " + source.getKey() + " failed: " + e );
+                    error = getString( R.string.transfer_failed, e.getMessage() );
+                    }
+
+                final String result = error;
+                transferHandler.post( new Runnable()
+                    {
+                    @Override
+                    public void run()
+                        {
+                        finishTransfer( source, targetFolder, move, result );
+                        }
+                    } );
+                }
+            } );
+        }
+
+    /**
+     * Transfer is finished (on the UI thread): changed folders are forgotten, and the visible
+     * folder is listed again
+     * @param error message of the failure, or null if transfer was successful
+     */
+    private void finishTransfer( DataFile source, DataFile targetFolder, boolean move, String error )
+        {
+        if ( isDestroyed() )
+            return; // posted after onDestroy()
+        transferEngine = null;
+        transferHandler.removeCallbacksAndMessages( null ); // late progress
+        progressPosted.set( false );
+        showTransferStatus( null );
+        invalidateOptionsMenu();
+        Toast.makeText( this, ( error != null ) ? error : getString( R.string.transfer_done ),
+                Toast.LENGTH_SHORT ).show();
+
+        List<DataFile> changed = new ArrayList<DataFile>();
+        changed.add( targetFolder );
+        DataFile sourceParent = source.getKnownParentFolder();
+        if ( move && sourceParent != null )
+            changed.add( sourceParent );
+        for ( DataFile folder : changed )
+            {
+            variables.listingCache.invalidate( folder );
+            childCountLoader.invalidate( folder );
+            folderSizeLoader.invalidate( folder );
+            }
+        refresh();
+        }
+
+    // Status of the transfer in the action bar (null to remove it)
+    private void showTransferStatus( String status )
+        {
+        if ( getSupportActionBar() != null )
+            getSupportActionBar().setSubtitle( status );
+        }
+
+    /**
+     * Searches text in the subfolders of the visible folder - or in the private folder and in
+     * each linked folder, if main folder is visible. Matches are shown while the search goes
+     * on (check SubfolderSearch). Each new text cancels the previous search.
+     * @param text text to find in the names
+     */
+    private void search( String text )
+        {
+        if ( currentCommands == null )
+            return;
+        if ( !searching )
+            saveCurrentPosition();
+        searching = true;
+
+        final boolean mainFolder = currentMainFolder;
+        final DataFile folder = variables.currentFolder;
+        final String constraint = text;
+        final SubfolderSearch search = new SubfolderSearch( this, walkPool,
+                CompactRows.foldCase( text ), currentCommands, variables.sortMode );
+
+        folderLoader.load( new FolderLoader.Job<List<SelectFileEntry>>()
+            {
+            private boolean first = true;
+
+            @Override
+            public List<SelectFileEntry> load( CancellationSignal signal,
+                                               FolderLoader.Publisher<List<SelectFileEntry>> publisher )
+                {
+                List<DataFile> roots = new ArrayList<DataFile>();
+                roots.add( folder );
+                if ( mainFolder )
+                    {
+                    for ( UriPermission uriPermission : getContentResolver().getPersistedUriPermissions() )
+                        roots.add( new DataFile( SelectFileActivity.this, uriPermission ));
+                    }
+                return search.search( roots, signal, publisher );
+                }
+
+            @Override
+            public void deliver( List<SelectFileEntry> entries, boolean finished )
+                {
+                Runnable committed = null;
+                if ( first )
+                    {
+                    first = false;
+                    committed = new Runnable()
+                        {
+                        @Override
+                        public void run()
+                            {
+                            layoutManager.scrollToPosition( 0 );
+                            }
+                        };
+                    }
+                adapter.submitEntries( entries, constraint, committed );
+                search.delivered();
+                }
+            } );
+        }
+
+    /**
+     * Shows the visible folder again instead of the results of search()
+     */
+    private void endSearch()
+        {
+        searching = false;
+        folderLoader.cancel();
+
+        ListingCache.Listing cached = variables.listingCache.get( variables.currentFolder );
+        if ( cached != null )
+            showCached( cached );
+        loadFolder( currentMainFolder, variables.currentFolder, currentCommands, cached == null );
+        }
+
+    /**
+     * Adds a new entry to the visible list, and to the cached listing - without listing the
+     * folder again
+     * @param entry new entry (eg. newly created file)
+     */
+    private void addEntry( SelectFileEntry entry )
+        {
+        List<SelectFileEntry> entries = insertSorted( adapter.getEntries(), entry, variables.sortMode );
+        adapter.submitEntries( entries, filter.getText().toString(), null );
+
+        if ( !searching )
+            variables.listingCache.put( variables.currentFolder, entries, variables.sortMode );
+        else
+            {
+            // Search results are shown - entry is added to the cached listing of the folder
+            ListingCache.Listing cached = variables.listingCache.get( variables.currentFolder );
+            if ( cached != null )
+                variables.listingCache.put( variables.currentFolder,
+                        insertSorted( cached.entries, entry, cached.sortMode ), cached.sortMode );
+            }
+        childCountLoader.invalidate( variables.currentFolder );
+        folderSizeLoader.invalidate( variables.currentFolder );
+        }
+
+    // Copy of the sorted entries, with entry inserted at its place
+    private static List<SelectFileEntry> insertSorted( List<SelectFileEntry> entries, SelectFileEntry entry,
+                                                       SelectFileEntry.SortMode sortMode )
+        {
+        List<SelectFileEntry> inserted = new ArrayList<SelectFileEntry>( entries );
+        int index = Collections.binarySearch( inserted, entry, SelectFileEntry.getComparator( sortMode ));
+        inserted.add( index < 0 ? -index - 1 : index, entry );
+        return inserted;
+        }
+
+    /**
+     * Collects command entries - these need no folder I/O.
+     * @param mainFolder true if main folder is populated
+     * @param folder folder to populate (private folder for the main folder)
+     * @param privateFolder app's private folder
+     * @return sorted list of commands
+     */
+    private List<SelectFileEntry> listCommands( boolean mainFolder, DataFile folder, DataFile privateFolder )
+        {
+        List<SelectFileEntry> entries = new ArrayList<SelectFileEntry>();
 
         // Populate list with commands, folders and files
         // This is the "main" - contents of private folder and linked folderes together
         if ( mainFolder )
             {
-            folder = privateFolder;
-
             // Add header for main folder
             entries.add(new SelectFileEntry( null,
                     isOpenDocumentTree() ? SelectFileEntry.HEADER_SELECTABLE : SelectFileEntry.HEADER ));
@@ -291,13 +862,7 @@ public class SelectFileActivity extends AppCompatActivity
             // Add link command
             entries.add(new SelectFileEntry(null, SelectFileEntry.LINK_FOLDER));
 
-            // Add linked folders
-            List<UriPermission> uriPermissions = getContentResolver().getPersistedUriPermissions();
-            for (UriPermission uriPermission : uriPermissions)
-                {
-                DataFile dataFile = new DataFile( this, uriPermission );
-                entries.add(new SelectFileEntry( dataFile, SelectFileEntry.LINKED_FOLDER));
-                }
+            // Linked folders are added by listFolder()
             }
         else // This is a real folder, or linked folder
             {
@@ -325,30 +890,245 @@ public class SelectFileActivity extends AppCompatActivity
         entries.add( new SelectFileEntry( null, SelectFileEntry.NEW_FILE));
         entries.add( new SelectFileEntry( null, SelectFileEntry.NEW_FOLDER));
 
+        SelectFileEntry.sort( entries, variables.sortMode );
+        return entries;
+        }
+
+    /**
+     * Merges sorted chunks of entries into the sorted list, and publishes the list from time to
+     * time. Used in the background by listFolder().
+     * Each published list is a new one, lists are never changed after publishing.
+     */
+    private static class EntryMerger
+        {
+        // Partial lists are published not more frequently
+        private static final long PUBLISH_INTERVAL_MS = 150L;
+
+        private final FolderLoader.Publisher<List<SelectFileEntry>> publisher; // can be null
+        private final SelectFileEntry.SortMode sortMode;
+        private final Comparator<SelectFileEntry> comparator;
+        private List<SelectFileEntry> entries;
+        private long lastPublished = 0L;
+
+        EntryMerger( List<SelectFileEntry> commands, SelectFileEntry.SortMode sortMode,
+                     FolderLoader.Publisher<List<SelectFileEntry>> publisher )
+            {
+            this.entries = commands;
+            this.sortMode = sortMode;
+            this.comparator = SelectFileEntry.getComparator( sortMode );
+            this.publisher = publisher;
+            }
+
+        void merge( List<SelectFileEntry> chunk )
+            {
+            SelectFileEntry.sort( chunk, sortMode );
+
+            List<SelectFileEntry> merged = new ArrayList<SelectFileEntry>( entries.size() + chunk.size() );
+            int i = 0;
+            int j = 0;
+            while ( i < entries.size() && j < chunk.size() )
+                {
+                if ( comparator.compare( entries.get(i), chunk.get(j) ) <= 0 )
+                    merged.add( entries.get(i++) );
+                else
+                    merged.add( chunk.get(j++) );
+                }
+            merged.addAll( entries.subList( i, entries.size() ));
+            merged.addAll( chunk.subList( j, chunk.size() ));
+            entries = merged;
+
+            long now = SystemClock.uptimeMillis();
+            if ( publisher != null && now - lastPublished >= PUBLISH_INTERVAL_MS )
+                {
+                lastPublished = now;
+                publisher.publish( entries );
+                }
+            }
+
+        List<SelectFileEntry> getEntries()
+            {
+            return entries;
+            }
+        }
+
+    /**
+     * Collects entries of the folder, and merges them into commands. This runs in the
+     * background!
+     * @param mainFolder true if main folder is populated - linked folders are added, too
+     * @param folder folder to list (private folder for the main folder)
+     * @param commands sorted command entries (already shown)
+     * @param sortMode order of the entries
+     * @param signal cancellation signal of this load
+     * @param publisher partial lists are published through it (null: only full list is needed)
+     * @return full, sorted list of the entries
+     */
+    private List<SelectFileEntry> listFolder( boolean mainFolder, final DataFile folder, List<SelectFileEntry> commands,
+                                              SelectFileEntry.SortMode sortMode,
+                                              final CancellationSignal signal,
+                                              FolderLoader.Publisher<List<SelectFileEntry>> publisher )
+        {
+        DataFile.resetBackendCalls();
+        final EntryMerger merger = new EntryMerger( commands, sortMode, publisher );
+
+        if ( mainFolder )
+            {
+            // Add linked folders
+            List<SelectFileEntry> linkedFolders = new ArrayList<SelectFileEntry>();
+            List<UriPermission> uriPermissions = getContentResolver().getPersistedUriPermissions();
+            for (UriPermission uriPermission : uriPermissions)
+                {
+                signal.throwIfCanceled();
+                DataFile dataFile = new DataFile( this, uriPermission );
+                dataFile.getAttributes(); // Snapshot is taken here, not on the UI thread
+                linkedFolders.add(new SelectFileEntry( dataFile, SelectFileEntry.LINKED_FOLDER));
+                }
+            merger.merge( linkedFolders );
+            }
+
         // Add contents of folder (files and folders)
-        DataFile[] filesInFolder = folder.listFiles(); // It cannot be null in folders
-        for(DataFile file: filesInFolder)
+        // Each batch is kept as compact rows, DataFile-s of the batch are dropped
+        folder.listFiles( this, signal, DataFile.DEFAULT_BATCH_SIZE, new DataFile.BatchCallback()
             {
-            entries.add( new SelectFileEntry( file, file.isDirectory() ?
-                    SelectFileEntry.FOLDER : SelectFileEntry.FILE ));
+            @Override
+            public void onBatch( List<DataFile> batch )
+                {
+                CompactRows rows = CompactRows.fromBatch( SelectFileActivity.this, folder, batch );
+                List<SelectFileEntry> chunk = new ArrayList<SelectFileEntry>( rows.getCount() );
+                for ( int i = 0; i < rows.getCount(); i++ )
+                    {
+                    chunk.add( new SelectFileEntry( rows, i ));
                     // ????? if ( file.getName().endsWith( getFileEnding() ) )
-            }
+                    }
+                signal.throwIfCanceled();
+                merger.merge( chunk );
+                }
+            } );
 
         // variables.positionOfFileSection = entriesFirstPart.size();
 
-        Collections.sort( entries );
+        List<SelectFileEntry> entries = merger.getEntries();
+        if ( BuildConfig.DEBUG )
+            {
+            // Measurement only - it walks all the entries
+            long bytes = 0L;
+            for ( SelectFileEntry entry : entries )
+                bytes += entry.getRetainedBytes() + 4; // + slot of the list
+            Log.d("SELECTFILE", "Listing " + folder.getName() + ": "
+                    + DataFile.getBackendCalls() + " backend calls, "
+                    + entries.size() + " entries, "
+                    + ( entries.isEmpty() ? 0 : bytes / entries.size() ) + " bytes/entry");
+            }
+
+        return entries;
+        }
+
+    /**
+     * Shows the commands of a folder immediately (on the UI thread)
+     * @param folder folder to populate (private folder for the main folder)
+     * @param commands result of listCommands()
+     */
+    private void showCommands( DataFile folder, List<SelectFileEntry> commands )
+        {
+        // Rows of the previous folder are replaced, list starts at the top
+        // (unless position is restored later)
+        adapter.submitEntries( commands, filter.getText().toString(), new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                layoutManager.scrollToPosition( 0 );
+                }
+            } );
 
-        SelectFileAdapter adapter = new SelectFileAdapter(SelectFileActivity.this, entries);
-        list.setAdapter(adapter);
+        // Position should be restored, when the whole folder is listed
+        restorePosition = variables.currentFolder != null;
 
-        adapter.getFilter().filter( filter.getText().toString() );
+        variables.currentFolder = folder;
+        folderWatcher.watch( folder );
+        }
 
+    /**
+     * Shows the cached entries of the folder, and restores its scroll position
+     * (on the UI thread)
+     * @param cached listing from the cache
+     */
+    private void showCached( final ListingCache.Listing cached )
+        {
+        final int position;
+        final int top;
+        if ( restorePosition && variables.positionOfTopEntry != -1 )
+            {
+            // Configuration change - position saved by onPause() is the latest
+            position = variables.positionOfTopEntry;
+            top = variables.topOfTopEntry;
+            variables.positionOfTopEntry = -1;
+            }
+        else
+            {
+            position = cached.position;
+            top = cached.top;
+            }
+
+        // Position can be restored only when rows are already in the list
+        adapter.submitEntries( sortedCopy( cached.entries, cached.sortMode ),
+                filter.getText().toString(), new Runnable()
+            {
+            @Override
+            public void run()
+                {
+                layoutManager.scrollToPositionWithOffset( position, top );
+                }
+            } );
+        }
+
+    /**
+     * Saves scroll position of the current folder into the cache
+     */
+    private void saveCurrentPosition()
+        {
         if ( variables.currentFolder != null )
+            {
+            int position = layoutManager.findFirstVisibleItemPosition();
+            if ( position != RecyclerView.NO_POSITION )
+                variables.listingCache.savePosition( variables.currentFolder,
+                        position, getTopOfRow( position ));
+            }
+        }
+
+    /**
+     * Offset of the row from the top of the list (0 if row is not visible)
+     */
+    private int getTopOfRow( int position )
+        {
+        View v = layoutManager.findViewByPosition( position );
+        return (v == null) ? 0 : v.getTop() - list.getPaddingTop();
+        }
+
+    /**
+     * Shows the (partial) entries of the folder (on the UI thread)
+     * @param entries published by listFolder()
+     * @param finished true if folder is fully listed (and its position should be restored)
+     */
+    private void showEntries( List<SelectFileEntry> entries, boolean finished )
+        {
+        Runnable committed = null;
+
+        if ( finished && restorePosition )
             {
             if ( variables.positionOfTopEntry != -1 )
                 {
-                list.setSelectionFromTop(variables.positionOfTopEntry, variables.topOfTopEntry);
+                final int position = variables.positionOfTopEntry;
+                final int top = variables.topOfTopEntry;
                 variables.positionOfTopEntry = -1;
+                // Position can be restored only when rows are already in the list
+                committed = new Runnable()
+                    {
+                    @Override
+                    public void run()
+                        {
+                        layoutManager.scrollToPositionWithOffset( position, top );
+                        }
+                    };
                 }
             else if ( filter.length() > 0 )
                 {
@@ -356,6 +1136,8 @@ public class SelectFileActivity extends AppCompatActivity
                 //  .positionOfFileSection, 0 );
                 }
             }
+
+        adapter.submitEntries( entries, filter.getText().toString(), committed );
 /*        else // if (previousDir != null)
             {
             for (int i=0; i < adapter.getCount(); i++)
@@ -370,8 +1152,32 @@ public class SelectFileActivity extends AppCompatActivity
                 }
             }
  */
+        }
 
-        variables.currentFolder = folder;
+
+    @Override
+    protected void onDestroy()
+        {
+        super.onDestroy();
+        filterHandler.removeCallbacks( filterRunnable );
+        folderLoader.shutdown();
+        childCountLoader.shutdown();
+        folderSizeLoader.shutdown();
+        // Unfinished transfer is cancelled - its partial targets are kept
+        if ( transferEngine != null )
+            transferEngine.cancel();
+        transferExecutor.shutdownNow();
+        transferHandler.removeCallbacksAndMessages( null );
+        walkPool.shutdownNow(); // after the users of the pool
+        folderWatcher.shutdown();
+        }
+
+
+    @Override
+    public void onTrimMemory( int level )
+        {
+        super.onTrimMemory( level );
+        variables.listingCache.trimMemory( level );
         }
 
 
@@ -382,9 +1188,9 @@ public class SelectFileActivity extends AppCompatActivity
         super.onPause();
 
         // currentFolder was alreday set
-        variables.positionOfTopEntry = list.getFirstVisiblePosition();
-        View v = list.getChildAt(0);
-        variables.topOfTopEntry = (v == null) ? 0 : v.getTop();
+        // NO_POSITION (-1) means: nothing to restore
+        variables.positionOfTopEntry = layoutManager.findFirstVisibleItemPosition();
+        variables.topOfTopEntry = getTopOfRow( variables.positionOfTopEntry );
         }
 
 
@@ -397,6 +1203,8 @@ public class SelectFileActivity extends AppCompatActivity
                 DataFile newFolder = variables.currentFolder.createFolder( text );
                 if ( newFolder != null )
                     {
+                    // Listing of the current folder is patched, BACK will show it
+                    addEntry( new SelectFileEntry( newFolder, SelectFileEntry.FOLDER ));
                     populate( newFolder );
                     }
                 else
@@ -407,10 +1215,12 @@ public class SelectFileActivity extends AppCompatActivity
                 break;
 
             case CREATE_FILE: // Export to non-exsisting file
-                if (variables.currentFolder.createFile( text ))
+                DataFile newFile = variables.currentFolder.createFile( text );
+                if ( newFile != null )
                     {
                     // TODO: return selected file !!!
-                    populate(variables.currentFolder);
+                    // New file is patched into the list - folder is not listed again
+                    addEntry( new SelectFileEntry( newFile, SelectFileEntry.FILE ));
                     }
                 else
                     {
@@ -4,126 +4,259 @@ import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.BaseAdapter;
 import android.widget.Filter;
 import android.widget.Filterable;
 import android.widget.ImageView;
-import android.widget.ListView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
 
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.RecyclerView;
 import digitalgarden.selectfilesafx.R;
 
 
-public class SelectFileAdapter extends BaseAdapter implements Filterable
+/**
+ * Adapter of the RecyclerView list.
+ *
+ * Adapter is created only once. New (partial, filtered) lists are compared to the visible list
+ * in the background (AsyncListDiffer), and only the changed rows are updated. Rows have stable
+ * ids (derived from the uri of the entry), so rows are kept while folder is listed again.
+ */
+public class SelectFileAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> implements Filterable
 	{
+	/**
+	 * Called when a (selectable) row or the icon of an entry row was tapped, or an entry row
+	 * was long pressed
+	 */
+	interface OnEntryClickListener
+		{
+		/**
+		 * @param entry tapped entry
+		 * @param view tapped view (row or R.id.file_entry_icon)
+		 */
+		void onEntryClick( SelectFileEntry entry, View view );
+
+		/**
+		 * @param entry long pressed entry
+		 * @return true if long press was consumed
+		 */
+		boolean onEntryLongClick( SelectFileEntry entry );
+		}
+
+	private static final DiffUtil.ItemCallback<SelectFileEntry> DIFF_CALLBACK =
+			new DiffUtil.ItemCallback<SelectFileEntry>()
+		{
+		@Override
+		public boolean areItemsTheSame( @NonNull SelectFileEntry oldEntry, @NonNull SelectFileEntry newEntry )
+			{
+			return oldEntry.getStableId() == newEntry.getStableId();
+			}
+
+		@Override
+		public boolean areContentsTheSame( @NonNull SelectFileEntry oldEntry, @NonNull SelectFileEntry newEntry )
+			{
+			return oldEntry.hasSameContent( newEntry );
+			}
+		};
+
 	private final LayoutInflater layoutInflater;
 	private final Context context;
-	
-	private List<SelectFileEntry> filteredEntries;
-	private final List<SelectFileEntry> originalEntries;
+	private final ChildCountLoader childCountLoader;
+	private final FolderSizeLoader folderSizeLoader;
+	private final OnEntryClickListener onEntryClickListener;
+
+	// Visible (filtered) entries
+	private final AsyncListDiffer<SelectFileEntry> differ =
+			new AsyncListDiffer<SelectFileEntry>( this, DIFF_CALLBACK );
+	// Replaced (never changed) while folder is listed - filter reads it in the background
+	private volatile List<SelectFileEntry> originalEntries;
+	// Called when the next list becomes visible (check submitEntries())
+	private Runnable pendingCommit;
 	
 	private entryFilter entryFilter;
 
 	
-    SelectFileAdapter(Context context, List<SelectFileEntry> entries)
+    SelectFileAdapter(Context context, ChildCountLoader childCountLoader, FolderSizeLoader folderSizeLoader,
+					  OnEntryClickListener onEntryClickListener)
 		{
 		super();
 		
 		this.layoutInflater = (LayoutInflater)context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-		this.originalEntries = entries;
-		this.filteredEntries = entries;
+		this.originalEntries = new ArrayList<SelectFileEntry>();
 		this.context = context;
+		this.childCountLoader = childCountLoader;
+		this.folderSizeLoader = folderSizeLoader;
+		this.onEntryClickListener = onEntryClickListener;
+		setHasStableIds( true );
     	}
 
-	@Override
-	public int getCount()
+	/**
+	 * Replaces entries - while folder is listed, entries arrive in chunks.
+	 * Entries are filtered and compared in the background, list is updated later.
+	 * @param entries new entries (should not be changed later)
+	 * @param constraint text of the filter
+	 * @param committed called when these entries became visible (can be null)
+	 */
+	void submitEntries( List<SelectFileEntry> entries, CharSequence constraint, final Runnable committed )
 		{
-		return (filteredEntries == null) ? 0 : filteredEntries.size();
+		this.originalEntries = entries;
+
+		// Lists can be replaced before they become visible - callbacks are not lost
+		if ( committed != null )
+			{
+			final Runnable previous = pendingCommit;
+			pendingCommit = ( previous == null ) ? committed : new Runnable()
+				{
+				@Override
+				public void run()
+					{
+					previous.run();
+					committed.run();
+					}
+				};
+			}
+
+		getFilter().filter( constraint );
+		}
+
+	/**
+	 * Returns all (non-filtered) entries. This list should not be changed!
+	 */
+	List<SelectFileEntry> getEntries()
+		{
+		return originalEntries;
+		}
+
+	/**
+	 * Rebinds visible rows (eg. new item counts or folder sizes arrived). Rows are not compared.
+	 */
+	void refreshRows()
+		{
+		notifyItemRangeChanged( 0, getItemCount() );
 		}
 
 	@Override
+	public int getItemCount()
+		{
+		return differ.getCurrentList().size();
+		}
+
 	public SelectFileEntry getItem(int position )
 		{
-		return filteredEntries.get( position );
+		return differ.getCurrentList().get( position );
 		}
 
 	@Override
 	public long getItemId(int position)
 		{
-		return position;
+		return getItem(position).getStableId();
 		}
 	
-	// A következő két függvény biztosítja, hogy a HEADER/DIVIDER más view-t használhat
-	@Override
-	public int getViewTypeCount()
-		{
-		return SelectFileEntry.getViewTypeCount();
-		}
-
+	// HEADER/DIVIDER can use different view
 	@Override
 	public int getItemViewType(int position)
 		{
 		return getItem(position).getItemViewType();
 		}
 	
-	// A következő két függvény biztosítja, hogy a HEADER/DIVIDER-t nem lehet kiválasztani
-	@Override
-	public boolean areAllItemsEnabled()
+	
+	// Views of HEADER rows
+	private class HeaderViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener
+		{
+		final TextView title;
+		final ImageView icon;
+
+		HeaderViewHolder( View rowView )
+			{
+			super( rowView );
+			title = rowView.findViewById( R.id.divider_title );
+			icon = rowView.findViewById( R.id.folder_select_icon );
+			rowView.setOnClickListener( this );
+			}
+
+		@Override
+		public void onClick(View v)
+			{
+			int position = getBindingAdapterPosition();
+			// HEADER is not selectable
+			if ( position != RecyclerView.NO_POSITION && getItem( position ).isEnabled() )
+				onEntryClickListener.onEntryClick( getItem( position ), v );
+			}
+		}
+
+	// Views of other rows
+	// Click listeners are created once for each row view, they read the current position
+	// from the holder - so binding a recycled row allocates nothing
+	private class EntryViewHolder extends RecyclerView.ViewHolder
+			implements View.OnClickListener, View.OnLongClickListener
 		{
-		return SelectFileEntry.areAllItemsEnabled();
+		final TextView name;
+		final TextView data;
+		final ImageView icon;
+
+		EntryViewHolder( View rowView )
+			{
+			super( rowView );
+			name = rowView.findViewById( R.id.file_entry_name );
+			data = rowView.findViewById( R.id.file_entry_data );
+			icon = rowView.findViewById( R.id.file_entry_icon );
+			rowView.setOnClickListener( this );
+			rowView.setOnLongClickListener( this );
+			icon.setOnClickListener( this );
+			}
+
+		@Override
+		public void onClick(View v)
+			{
+			int position = getBindingAdapterPosition();
+			if ( position != RecyclerView.NO_POSITION )
+				onEntryClickListener.onEntryClick( getItem( position ), v );
+			}
+
+		@Override
+		public boolean onLongClick(View v)
+			{
+			int position = getBindingAdapterPosition();
+			return position != RecyclerView.NO_POSITION &&
+					onEntryClickListener.onEntryLongClick( getItem( position ));
+			}
 		}
-	
+
+	@NonNull
 	@Override
-	public boolean isEnabled(int position)
+	public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType)
 		{
-		return getItem(position).isEnabled();
+		if ( viewType == 0 )
+			return new HeaderViewHolder(
+					layoutInflater.inflate( R.layout.file_entry_header_row_view, parent, false ));
+		else
+			return new EntryViewHolder(
+					layoutInflater.inflate( R.layout.file_entry_row_view, parent, false ));
 		}
-	
-	
+
 	@Override
-    public View getView(int position, View convertView, ViewGroup parent)
+    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder viewHolder, int position)
 		{
     	SelectFileEntry entry = getItem(position);
-    	View rowView;
-    	
-    	if ( entry.getItemViewType() == 0 )
-			{
-			rowView = (convertView == null) ? layoutInflater.inflate(
-					R.layout.file_entry_header_row_view, null) : convertView;
-
 
-			TextView title = rowView.findViewById( R.id.divider_title );
-			title.setText( entry.getName( context ));
-			ImageView icon = rowView.findViewById( R.id.folder_select_icon );
-			icon.setVisibility( isEnabled(position) ? View.VISIBLE : View.GONE );
+    	if ( viewHolder instanceof HeaderViewHolder )
+			{
+			HeaderViewHolder holder = (HeaderViewHolder) viewHolder;
+			holder.title.setText( entry.getName( context ));
+			holder.icon.setVisibility( entry.isEnabled() ? View.VISIBLE : View.GONE );
+			holder.itemView.setClickable( entry.isEnabled() );
 			}
 		else
     		{
-    		rowView = (convertView == null) ? layoutInflater.inflate(
-    				R.layout.file_entry_row_view, null) : convertView;
-    	
-			TextView name = rowView.findViewById( R.id.file_entry_name );
-			TextView data = rowView.findViewById( R.id.file_entry_data );
-			ImageView icon = rowView.findViewById( R.id.file_entry_icon );
-
-			name.setText( entry.getName( context ));
-			data.setText( entry.getData( context ));
-			icon.setImageResource( entry.getImageResource() );
-
-			icon.setOnClickListener(new View.OnClickListener()
-				{
-				@Override
-				public void onClick(View v)
-					{
-					((ListView) parent).performItemClick(v, position, 0); // Let the event be handled in onItemClick()
-					}
-				});
+			EntryViewHolder holder = (EntryViewHolder) viewHolder;
+			holder.name.setText( entry.getName( context ));
+			holder.data.setText( entry.getData( context, childCountLoader, folderSizeLoader ));
+			holder.icon.setImageResource( entry.getImageResource() );
     		}
-    	return rowView;
     	}
 
 	// http://stackoverflow.com/a/13514663 - Search and Filter List
@@ -135,25 +268,51 @@ public class SelectFileAdapter extends BaseAdapter implements Filterable
 		return entryFilter;
 		}	
 		
+	// Filter narrows its previous result, if the new constraint contains the previous one
+	// (eg. a letter was typed). These are used only on the filter's worker thread.
+	private List<SelectFileEntry> lastSource;
+	private String lastConstraint;
+	private List<SelectFileEntry> lastResult;
+
+	// Results remember their source: a late result of older entries cannot take the callback
+	// of newer entries (check submitEntries())
+	private static class EntryFilterResults extends Filter.FilterResults
+		{
+		List<SelectFileEntry> source;
+		}
+
 	private class entryFilter extends Filter
 		{
 		protected FilterResults performFiltering(CharSequence constraint)
 			{
-			FilterResults filterResults = new FilterResults();
+			EntryFilterResults filterResults = new EntryFilterResults();
+			List<SelectFileEntry> originalEntries = SelectFileAdapter.this.originalEntries;
+			filterResults.source = originalEntries;
 			if (constraint != null && constraint.length() > 0 )
 				{
+				// Folded by the same rule as the names are compared
+				String foldedConstraint = CompactRows.foldCase( constraint.toString() );
+
+				// Entries were not changed, and constraint was extended: previous result is
+				// narrowed, other entries cannot match
+				List<SelectFileEntry> source = originalEntries;
+				if ( lastSource == originalEntries && lastConstraint != null &&
+						foldedConstraint.contains( lastConstraint ))
+					source = lastResult;
+
 	            List<SelectFileEntry> filterList=new ArrayList<SelectFileEntry>();
-				constraint = constraint.toString().toLowerCase( Locale.getDefault() );
-				
+
 				// dir es file tipust is szukiti
-	            for ( int i=0; i < originalEntries.size(); i++ )
+	            for ( int i=0; i < source.size(); i++ )
 					{
-					switch (originalEntries.get(i).getType())
+					SelectFileEntry entry = source.get(i);
+					switch (entry.getType())
 						{
 						case SelectFileEntry.FOLDER:
 						case SelectFileEntry.FILE:
 						case SelectFileEntry.LINKED_FOLDER:
-							if (!originalEntries.get(i).getName(context).toLowerCase(Locale.getDefault()).contains(constraint))
+							// names are searched inside the compact rows, no String is created
+							if (!entry.nameContains(foldedConstraint))
 								break;
 						case SelectFileEntry.HEADER:
 						case SelectFileEntry.HEADER_SELECTABLE:
@@ -163,14 +322,23 @@ public class SelectFileAdapter extends BaseAdapter implements Filterable
 						case SelectFileEntry.NEW_FILE:
 						case SelectFileEntry.LINK_FOLDER:
 						case SelectFileEntry.UNLINK_FOLDER:
-							filterList.add(originalEntries.get(i));
+							filterList.add(entry);
 						}
 					}
+
+				lastSource = originalEntries;
+				lastConstraint = foldedConstraint;
+				lastResult = filterList;
+
 	            filterResults.count = filterList.size();
 	            filterResults.values = filterList;
 				}
 			else
 				{
+				lastSource = null;
+				lastConstraint = null;
+				lastResult = null;
+
 	            filterResults.count = originalEntries.size();
 	            filterResults.values = originalEntries;
 				}
@@ -181,8 +349,14 @@ public class SelectFileAdapter extends BaseAdapter implements Filterable
 		@SuppressWarnings("unchecked")
 		protected void publishResults(CharSequence constraint, FilterResults filterResults)
 			{
-			filteredEntries = (List<SelectFileEntry>) filterResults.values;
-			notifyDataSetChanged();
+			Runnable committed = null;
+			if ( ((EntryFilterResults) filterResults).source == originalEntries )
+				{
+				committed = pendingCommit;
+				pendingCommit = null;
+				}
+			// Differ compares lists in the background, and updates only the changed rows
+			differ.submitList( (List<SelectFileEntry>) filterResults.values, committed );
 			}	
 		}
 	}
@@ -3,8 +3,12 @@ package digitalgarden.selectfilesafx.selectfile;
 
 import android.content.Context;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Locale;
 
 import digitalgarden.selectfilesafx.R;
@@ -14,6 +18,14 @@ import digitalgarden.selectfilesafx.R;
  * folders, files and formatters.
  * It implements Comparable - so entries can be ordered by name.
  * Important! There are two different file systems to handle. Check DataFile
+ *
+ * Names are compared by locale-aware collation keys. Key is computed once, when entry is
+ * created (in the background), so sorting needs no string operations and no allocation.
+ * Other sort modes (check SortMode) use primitive keys taken from the attribute snapshot, so
+ * entries can be sorted again without any I/O.
+ *
+ * Listed FOLDER and FILE entries are light: they point to a row of CompactRows (keys, names
+ * and attributes are stored there), their DataFile is created only when it is needed.
  */
 class SelectFileEntry implements Comparable<SelectFileEntry>
 	{
@@ -54,15 +66,241 @@ class SelectFileEntry implements Comparable<SelectFileEntry>
 	// file: current (linked) folder - folder who's parent folder is null
 
 
+	/**
+	 * Order of the entries inside the same type (folders are always before files)
+	 */
+	enum SortMode
+		{
+		NAME,	// by name
+		DATE,	// newest first, then by name
+		SIZE,	// largest file first, then by name (folders by name)
+		TYPE	// by extension, then by name
+		}
+
+	// Numbers inside names are compared by value (file9 < file10)
+	static boolean naturalOrder = true;
+
+	// Lists longer than this are sorted parallel
+	private static final int PARALLEL_SORT_LIMIT = 8192;
+
+	// Collator is not thread-safe - each thread has its own, for the current locale
+	private static class Collation
+		{
+		final Locale locale;
+		final Collator collator;
+
+		Collation( Locale locale )
+			{
+			this.locale = locale;
+			this.collator = Collator.getInstance( locale );
+			// Case is ignored (as toLowerCase() did), accents are not
+			this.collator.setStrength( Collator.SECONDARY );
+			}
+		}
+
+	private static final ThreadLocal<Collation> collation = new ThreadLocal<>();
+
+
+	// Object header and fields of an entry (compressed oops) - check getRetainedBytes()
+	private static final int ENTRY_BYTES = CompactRows.objectBytes( SelectFileEntry.class );
+
+
 	// Type of the list entries - type values define sort order
 	private final int type;
 
-	private final DataFile dataFile;
+	// FOLDER, FILE and LINKED_FOLDER entries are rows of a compact store (check CompactRows),
+	// other types have no row (rows is null)
+	private final CompactRows rows;
+	private final int row;
+
+	// Commands get it in the constructor, rows create it only when needed (check getDataFile())
+	private volatile DataFile dataFile;
+
+	// Memoized data row (check getData())
+	private volatile String data;
 
 	SelectFileEntry(DataFile dataFile, int type )
 		{
 		this.dataFile = dataFile;
 		this.type = type;
+
+		if ( dataFile != null && ( type == FOLDER || type == FILE || type == LINKED_FOLDER ))
+			this.rows = CompactRows.fromDataFile( dataFile, type );
+		else
+			this.rows = null;
+		this.row = 0;
+		}
+
+	/**
+	 * FOLDER or FILE entry of a listed row - DataFile is not created yet
+	 * @param rows compact rows of a listed batch
+	 * @param row index inside rows
+	 */
+	SelectFileEntry( CompactRows rows, int row )
+		{
+		this.type = rows.isDirectory( row ) ? FOLDER : FILE;
+		this.rows = rows;
+		this.row = row;
+		}
+
+	/**
+	 * Stable id of the row: 64-bit FNV-1a hash of the type and the uri of the entry.
+	 * (32-bit hashes would collide in huge folders.)
+	 * Command entries without DataFile are unique by their type.
+	 */
+	static long createStableId( int type, DataFile dataFile )
+		{
+		long hash = 0xcbf29ce484222325L;
+		hash = ( hash ^ type ) * 0x100000001b3L;
+
+		String key = ( dataFile == null ) ? "" : dataFile.getKey();
+		for ( int i = 0; i < key.length(); i++ )
+			hash = ( hash ^ key.charAt( i ) ) * 0x100000001b3L;
+		return hash;
+		}
+
+	/**
+	 * Creates collation key for name with the collator of the current thread and locale
+	 * @param name name of the file (cannot be null)
+	 * @return collation key
+	 */
+	static CollationKey createSortKey( String name )
+		{
+		Locale locale = Locale.getDefault();
+		Collation current = collation.get();
+		if ( current == null || !current.locale.equals( locale ))
+			{
+			current = new Collation( locale );
+			collation.set( current );
+			}
+
+		return current.collator.getCollationKey( naturalOrder ? naturalize( name ) : name );
+		}
+
+	/**
+	 * Every run of digits gets its length as a two-digit prefix (leading zeros are dropped),
+	 * so shorter numbers come first: "file9" -> "file019", "file10" -> "file0210"
+	 */
+	private static String naturalize( String name )
+		{
+		StringBuilder builder = null;
+		int length = name.length();
+		int i = 0;
+		while ( i < length )
+			{
+			char c = name.charAt( i );
+			if ( c < '0' || c > '9' )
+				{
+				if ( builder != null )
+					builder.append( c );
+				i++;
+				continue;
+				}
+
+			if ( builder == null )
+				{
+				builder = new StringBuilder( length + 8 );
+				builder.append( name, 0, i );
+				}
+
+			int start = i;
+			while ( start < length - 1 && name.charAt( start ) == '0' &&
+					name.charAt( start + 1 ) >= '0' && name.charAt( start + 1 ) <= '9' )
+				start++;
+			int end = start;
+			while ( end < length && name.charAt( end ) >= '0' && name.charAt( end ) <= '9' )
+				end++;
+
+			int digits = Math.min( end - start, 99 );
+			builder.append( (char)( '0' + digits / 10 )).append( (char)( '0' + digits % 10 ));
+			builder.append( name, start, end );
+			i = end;
+			}
+
+		return ( builder == null ) ? name : builder.toString();
+		}
+
+	/**
+	 * Sorts entries - long lists are sorted parallel
+	 * @param entries list to sort (it is changed!)
+	 * @param sortMode order inside the same type
+	 */
+	static void sort( List<SelectFileEntry> entries, SortMode sortMode )
+		{
+		Comparator<SelectFileEntry> comparator = getComparator( sortMode );
+		if ( entries.size() < PARALLEL_SORT_LIMIT )
+			{
+			Collections.sort( entries, comparator );
+			return;
+			}
+
+		SelectFileEntry[] array = entries.toArray( new SelectFileEntry[0] );
+		Arrays.parallelSort( array, comparator );
+		for ( int i = 0; i < array.length; i++ )
+			entries.set( i, array[i] );
+		}
+
+	/**
+	 * Compares entries by primitive keys - no allocation, no I/O.
+	 * Type always comes first, name is the last tie-breaker.
+	 */
+	private static class EntryComparator implements Comparator<SelectFileEntry>
+		{
+		private final SortMode sortMode;
+
+		EntryComparator( SortMode sortMode )
+			{
+			this.sortMode = sortMode;
+			}
+
+		@Override
+		public int compare( SelectFileEntry thisFile, SelectFileEntry thatFile )
+			{
+			if (thisFile.type != thatFile.type)
+				return thisFile.type - thatFile.type;
+
+			if (thisFile.rows == null || thatFile.rows == null)
+				return 0;
+
+			int result = 0;
+			switch ( sortMode )
+				{
+				case DATE:
+					result = Long.compare( thatFile.getLastModified(), thisFile.getLastModified() );
+					break;
+				case SIZE:
+					result = Long.compare( thatFile.getSize(), thisFile.getSize() );
+					break;
+				case TYPE:
+					result = thisFile.rows.compareExtensions( thisFile.row, thatFile.rows, thatFile.row );
+					break;
+				}
+
+			return ( result != 0 ) ? result :
+					thisFile.rows.compareNames( thisFile.row, thatFile.rows, thatFile.row );
+			}
+		}
+
+	private static final Comparator<SelectFileEntry> BY_NAME = new EntryComparator( SortMode.NAME );
+	private static final Comparator<SelectFileEntry> BY_DATE = new EntryComparator( SortMode.DATE );
+	private static final Comparator<SelectFileEntry> BY_SIZE = new EntryComparator( SortMode.SIZE );
+	private static final Comparator<SelectFileEntry> BY_TYPE = new EntryComparator( SortMode.TYPE );
+
+	/**
+	 * Comparator for the sort mode (NAME is the same as compareTo())
+	 */
+	static Comparator<SelectFileEntry> getComparator( SortMode sortMode )
+		{
+		switch ( sortMode )
+			{
+			case DATE:
+				return BY_DATE;
+			case SIZE:
+				return BY_SIZE;
+			case TYPE:
+				return BY_TYPE;
+			}
+		return BY_NAME;
 		}
 
 	int getType()
@@ -70,9 +308,68 @@ class SelectFileEntry implements Comparable<SelectFileEntry>
 		return type;
 		}
 
+	/**
+	 * DataFile of the entry. DataFile of a listed row is created at first call - eg. when the
+	 * row is opened or its items are counted.
+	 */
 	DataFile getDataFile()
 		{
-		return dataFile;
+		DataFile current = dataFile;
+		if ( current == null && rows != null )
+			{
+			current = rows.createDataFile( row );
+			dataFile = current;
+			}
+		return current;
+		}
+
+	long getLastModified()
+		{
+		return ( rows == null ) ? 0L : rows.getLastModified( row );
+		}
+
+	long getSize()
+		{
+		return ( rows == null ) ? 0L : rows.getSize( row );
+		}
+
+	/**
+	 * Retained heap of the entry, its compact row, and the memoized DataFile and data string
+	 * (list slot is not counted)
+	 */
+	int getRetainedBytes()
+		{
+		long bytes = ENTRY_BYTES + (( rows == null ) ? 0 : rows.getBytesPerRow() );
+		bytes += CompactRows.stringBytes( data );
+		DataFile memoized = dataFile;
+		if ( memoized != null )
+			bytes += memoized.getRetainedBytes();
+		return (int) bytes;
+		}
+
+	/**
+	 * Same entry (same uri and type) gets the same id in each listing
+	 */
+	long getStableId()
+		{
+		return ( rows == null ) ? createStableId( type, dataFile ) : rows.getStableId( row );
+		}
+
+	/**
+	 * Entries of the same id show the same row, if their data did not change
+	 * @param other entry of the same id (from a newer listing)
+	 * @return true if row should not be bound again
+	 */
+	boolean hasSameContent( SelectFileEntry other )
+		{
+		if ( type != other.type )
+			return false;
+		if ( rows == null || other.rows == null )
+			return rows == other.rows;
+
+		return rows.getLastModified( row ) == other.rows.getLastModified( other.row ) &&
+				rows.getSize( row ) == other.rows.getSize( other.row ) &&
+				rows.sameName( row, other.rows, other.row );
 		}
 
 	String getName( Context context )
@@ -86,7 +383,7 @@ class SelectFileEntry implements Comparable<SelectFileEntry>
 			case FOLDER:
 			case FILE:
 			case LINKED_FOLDER:
-				return dataFile.getName();
+				return rows.getName( row );
 			case NEW_FILE:
 				return context.getString( R.string.create_new_file_short );
 			case NEW_FOLDER:
@@ -103,32 +400,65 @@ class SelectFileEntry implements Comparable<SelectFileEntry>
 		return "ERROR!";
 		}
 
-	String getData( Context context )
+	/**
+	 * Name of FOLDER, FILE and LINKED_FOLDER entries contains the text (ignoring case) - used by
+	 * the filter. No String is created.
+	 * @param foldedText text folded by CompactRows.foldCase()
+	 */
+	boolean nameContains( String foldedText )
 		{
-		SimpleDateFormat sdf=new SimpleDateFormat( context.getString(R.string.simple_date_format), Locale.US );
+		return rows != null && rows.nameContains( row, foldedText );
+		}
+
+	// Item count of folders is counted by childCountLoader, total size (with subfolders) is
+	// calculated by folderSizeLoader in the background. Until they arrive, placeholders are shown.
+	// Data string is computed only once, when row is bound first, and it is reused on later
+	// binds. Folder data with placeholder is not kept.
+	String getData( Context context, ChildCountLoader childCountLoader,
+					FolderSizeLoader folderSizeLoader )
+		{
+		String result = data;
+		if ( result != null )
+			return result;
 
 		switch (type)
 			{
 			// case HEADER: - HEADER has no data!
 			case FOLDER:
 			case LINKED_FOLDER:
-				return sdf.format( new Date( dataFile.lastModified() )) + context.getString( R.string.separator ) + dataFile.length() + context.getString( R.string.items );
+				int count = childCountLoader.getChildCount( getDataFile() );
+				FolderSizeLoader.Total total = folderSizeLoader.getTotal( getDataFile() );
+				result = EntryFormatter.get( context ).formatFolder( getLastModified(), count, total );
+				if ( count == DataFile.UNKNOWN_COUNT || total == null )
+					return result;
+				break;
 			case FILE:
-				return sdf.format(new Date( dataFile.lastModified() )) + context.getString( R.string.separator ) + dataFile.length() + context.getString( R.string.bytes );
+				result = EntryFormatter.get( context ).formatFile( getLastModified(), getSize() );
+				break;
 			case NEW_FILE:
-				return context.getString( R.string.create_new_file );
+				result = context.getString( R.string.create_new_file );
+				break;
 			case NEW_FOLDER:
-				return context.getString( R.string.create_new_folder );
+				result = context.getString( R.string.create_new_folder );
+				break;
 			case LINK_FOLDER:
-				return context.getString( R.string.link_folder );
+				result = context.getString( R.string.link_folder );
+				break;
 			case UNLINK_FOLDER:
-				return context.getString( R.string.unlink_folder );
+				result = context.getString( R.string.unlink_folder );
+				break;
 			case HOME:
-				return context.getString( R.string.home );
+				result = context.getString( R.string.home );
+				break;
 			case BACK:
-				return context.getString( R.string.parent_folder );
+				result = context.getString( R.string.parent_folder );
+				break;
+			default:
+				return "ERROR"; // This cannot happen!!
 			}
-		return "ERROR"; // This cannot happen!!
+
+		data = result;
+		return result;
 		}
 
 	/* Icons are created by InkScape (ikonocskak3.svg)
@@ -213,23 +543,12 @@ class SelectFileEntry implements Comparable<SelectFileEntry>
 		{
 		if ( thatFile!= null )
 			{
-			if (type != thatFile.type)
-				return type - thatFile.type;
-
 			// types are identical, compare filenames!
-			if (dataFile != null && thatFile.getDataFile() != null)
-				{
-				String thisString = dataFile.getName().toLowerCase(Locale.getDefault());
-				String thatString =
-						thatFile.getDataFile().getName().toLowerCase(Locale.getDefault());
-				// normalize() could be an option instead of toLowerCase()
-				// Name is obligatory, cannot be null
-
-				return thisString.compareTo(thatString);
-				}
+			// (keys were created from the names - name is obligatory, cannot be null)
+			return getComparator( SortMode.NAME ).compare( this, thatFile );
 			}
 
-		// thatFile is missing OR types are identical BUT files are missing
+		// thatFile is missing
 		return 0;
     	}
 	}
@@ -0,0 +1,355 @@
+package digitalgarden.selectfilesafx.selectfile;
+
+import android.content.res.AssetFileDescriptor;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies and compares streams with large, reusable buffers.
+ *
+ * read() can return fewer bytes than asked (eg. at the end of an inflated block), so blocks are
+ * always filled completely before they are compared. compareAndCopy() reads the source only
+ * once: it compares until the first difference, and then it switches to copying - the equal
+ * part is written by the caller (eg. from the previous target), the source is not read again.
+ *
+ * Each thread gets its own buffers, so copies can run in parallel. Copies and comparisons can be
+ * cancelled between blocks (OperationCanceledException is thrown then).
+ *
+ * If both ends are regular files (private folder, local SAF providers, uncompressed assets),
+ * copy() uses FileChannel.transferTo(): bytes are copied by the kernel, they never reach the
+ * Java heap. Pipes and sockets (eg. cloud providers) are copied through the buffers.
+ */
+class StreamCopier
+    {
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    // Kernel copies are split into chunks this big, if progress is needed
+    static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+    /**
+     * Called after each copied block or chunk (eg. to show progress, to pause or to cancel the
+     * copy by throwing OperationCanceledException)
+     */
+    interface OnBlockListener
+        {
+        /**
+         * @param bytes bytes copied since the previous call
+         */
+        void onBlock( long bytes );
+        }
+
+    /**
+     * Called at the first difference of compareAndCopy()
+     */
+    interface OnDifferenceListener
+        {
+        /**
+         * Should create the target, and write the first equalBytes bytes into it
+         * (these are the same in the source and in the previous stream).
+         * @param equalBytes length of the equal part - rest of the source is written after it
+         * @return stream of the target (caller closes it)
+         * @throws IOException if target cannot be created
+         */
+        OutputStream onDifference( long equalBytes ) throws IOException;
+        }
+
+    /**
+     * Listener, which stops the copy, when signal is cancelled
+     * @param signal cancellation signal (can be null)
+     * @return listener, or null if signal is null
+     */
+    static OnBlockListener cancelledBy( final CancellationSignal signal )
+        {
+        if ( signal == null )
+            return null;
+        return new OnBlockListener()
+            {
+            @Override
+            public void onBlock( long bytes )
+                {
+                signal.throwIfCanceled();
+                }
+            };
+        }
+
+    // Two blocks for each thread: source and previous (or copy buffer)
+    private static final ThreadLocal<byte[][]> buffers = new ThreadLocal<byte[][]>()
+        {
+        @Override
+        protected byte[][] initialValue()
+            {
+            return new byte[][] { new byte[BLOCK_SIZE], new byte[BLOCK_SIZE] };
+            }
+        };
+
+
+    /**
+     * Reads until buffer is full, or stream ends
+     * @return number of bytes read (less than length only at the end of the stream)
+     */
+    static int readFully( InputStream stream, byte[] buffer, int length ) throws IOException
+        {
+        int filled = 0;
+        while ( filled < length )
+            {
+            int read = stream.read( buffer, filled, length - filled );
+            if ( read == -1 )
+                break;
+            filled += read;
+            }
+        return filled;
+        }
+
+    /**
+     * Copies input to output (output is flushed, but not closed)
+     * @return number of bytes copied
+     */
+    static long copy( InputStream input, OutputStream output ) throws IOException
+        {
+        return copy( input, output, Long.MAX_VALUE );
+        }
+
+    /**
+     * Copies the first (at most) limit bytes of input to output (output is flushed, not closed)
+     * @return number of bytes copied
+     */
+    static long copy( InputStream input, OutputStream output, long limit ) throws IOException
+        {
+        return copy( input, output, limit, null );
+        }
+
+    /**
+     * Copies the first (at most) limit bytes of input to output (output is flushed, not closed)
+     * @param listener called after each block (can be null)
+     * @return number of bytes copied
+     */
+    static long copy( InputStream input, OutputStream output, long limit, OnBlockListener listener )
+            throws IOException
+        {
+        FileChannel inputChannel = channelOf( input );
+        FileChannel outputChannel = ( inputChannel != null ) ? channelOf( output ) : null;
+        if ( outputChannel != null )
+            return transfer( inputChannel, inputChannel.position(), limit, outputChannel, listener );
+
+        // Second block: onDifference() can copy, while first block holds the source
+        byte[] buffer = buffers.get()[1];
+        long copied = 0L;
+        while ( copied < limit )
+            {
+            int read = input.read( buffer, 0, (int) Math.min( BLOCK_SIZE, limit - copied ));
+            if ( read == -1 )
+                break;
+            output.write( buffer, 0, read );
+            copied += read;
+            if ( listener != null )
+                listener.onBlock( read );
+            }
+        output.flush();
+        return copied;
+        }
+
+    /**
+     * Copies an asset (opened by AssetManager.openFd() - only uncompressed assets can be opened
+     * so) to output. Output is flushed, but not closed; asset is not closed.
+     * @return number of bytes copied
+     * @throws IOException if asset cannot be copied completely
+     */
+    static long copy( AssetFileDescriptor asset, OutputStream output ) throws IOException
+        {
+        return copy( asset, output, null );
+        }
+
+    /**
+     * Copies an asset (check above), signal is checked between blocks
+     * @param signal cancellation signal (can be null)
+     */
+    static long copy( AssetFileDescriptor asset, OutputStream output, CancellationSignal signal )
+            throws IOException
+        {
+        OnBlockListener listener = cancelledBy( signal );
+        boolean known = asset.getLength() != AssetFileDescriptor.UNKNOWN_LENGTH;
+        long length = known ? asset.getLength() : Long.MAX_VALUE;
+
+        long copied;
+        FileChannel outputChannel = channelOf( output );
+        if ( outputChannel == null )
+            {
+            // Stream of the asset is limited to its range
+            copied = copy( asset.createInputStream(), output, length, listener );
+            }
+        else
+            {
+            // Asset is a range inside the apk: channel is NOT limited to it. (This stream does
+            // not own the descriptor, closing it would not close the asset.)
+            FileChannel inputChannel = new FileInputStream( asset.getFileDescriptor() ).getChannel();
+            copied = transfer( inputChannel, asset.getStartOffset(), length, outputChannel, listener );
+            }
+
+        if ( known && copied != length )
+            throw new IOException( "Asset was copied partially: " + copied + " of " + length + " bytes" );
+        return copied;
+        }
+
+    /**
+     * Kernel copies from position (at most limit bytes, or until the end of input). If kernel
+     * stops copying, rest is copied through the buffer.
+     * @throws IOException if input ends before the copied range (eg. it was truncated meanwhile)
+     */
+    private static long transfer( FileChannel input, long position, long limit, FileChannel output,
+                                  OnBlockListener listener ) throws IOException
+        {
+        long end = input.size();
+        if ( limit < end - position )
+            end = position + limit;
+
+        long start = position;
+        while ( position < end )
+            {
+            long count = ( listener == null ) ? end - position : Math.min( TRANSFER_CHUNK, end - position );
+            long transferred = input.transferTo( position, count, output );
+            if ( transferred <= 0 )
+                break; // no progress - buffer is used
+            position += transferred;
+            if ( listener != null )
+                listener.onBlock( transferred );
+            }
+
+        if ( position < end )
+            {
+            ByteBuffer buffer = ByteBuffer.wrap( buffers.get()[1] );
+            while ( position < end )
+                {
+                buffer.clear();
+                buffer.limit( (int) Math.min( BLOCK_SIZE, end - position ));
+                int read = input.read( buffer, position );
+                if ( read == -1 )
+                    break;
+                buffer.flip();
+                while ( buffer.hasRemaining() )
+                    output.write( buffer );
+                position += read;
+                if ( listener != null )
+                    listener.onBlock( read );
+                }
+            }
+
+        input.position( position );
+        if ( position < end )
+            throw new IOException( "Input ended at " + ( position - start ) + " of " +
+                    ( end - start ) + " bytes" );
+        return position - start;
+        }
+
+    // Channel of a (whole) regular file, or null if stream should be used
+    private static FileChannel channelOf( InputStream input ) throws IOException
+        {
+        // Subclasses (eg. stream of AssetFileDescriptor) can limit their range - channel cannot
+        if ( input.getClass() != FileInputStream.class &&
+                input.getClass() != ParcelFileDescriptor.AutoCloseInputStream.class )
+            return null;
+        FileInputStream fileInput = (FileInputStream) input;
+        return isRegularFile( fileInput.getFD() ) ? fileInput.getChannel() : null;
+        }
+
+    private static FileChannel channelOf( OutputStream output ) throws IOException
+        {
+        if ( !( output instanceof FileOutputStream ))
+            return null;
+        FileOutputStream fileOutput = (FileOutputStream) output;
+        return isRegularFile( fileOutput.getFD() ) ? fileOutput.getChannel() : null;
+        }
+
+    private static boolean isRegularFile( FileDescriptor descriptor )
+        {
+        try
+            {
+            return OsConstants.S_ISREG( Os.fstat( descriptor ).st_mode );
+            }
+        catch ( ErrnoException e )
+            {
+            return false;
+            }
+        }
+
+    /**
+     * Compares source to previous in ONE pass. At the first difference listener creates the
+     * target, and rest of the source is copied into it - source is never read again.
+     * @param source new content
+     * @param previous previous content
+     * @param listener creates the target at the first difference
+     * @return true if streams were identical (nothing was written)
+     * @throws IOException if reading or writing error occurs
+     */
+    static boolean compareAndCopy( InputStream source, InputStream previous,
+                                   OnDifferenceListener listener ) throws IOException
+        {
+        return compareAndCopy( source, previous, listener, null );
+        }
+
+    /**
+     * Compares and copies (check above), signal is checked between blocks
+     * @param signal cancellation signal (can be null)
+     */
+    static boolean compareAndCopy( InputStream source, InputStream previous,
+                                   OnDifferenceListener listener, CancellationSignal signal )
+            throws IOException
+        {
+        byte[][] blocks = buffers.get();
+        byte[] sourceBlock = blocks[0];
+        byte[] previousBlock = blocks[1];
+
+        long equalBytes = 0L;
+        while ( true )
+            {
+            if ( signal != null )
+                signal.throwIfCanceled();
+            int sourceLength = readFully( source, sourceBlock, BLOCK_SIZE );
+            int previousLength = readFully( previous, previousBlock, BLOCK_SIZE );
+
+            if ( sourceLength != previousLength ||
+                    !equalRange( sourceBlock, previousBlock, sourceLength ))
+                {
+                // Equal part ends at the start of this block - this block and the rest of the
+                // source are copied
+                OutputStream target = listener.onDifference( equalBytes );
+                target.write( sourceBlock, 0, sourceLength );
+                int read;
+                while ( (read = source.read( sourceBlock )) != -1 )
+                    {
+                    if ( signal != null )
+                        signal.throwIfCanceled();
+                    target.write( sourceBlock, 0, read );
+                    }
+                target.flush();
+                return false;
+                }
+
+            if ( sourceLength < BLOCK_SIZE )
+                return true; // both streams ended at the same place
+
+            equalBytes += sourceLength;
+            }
+        }
+
+    private static boolean equalRange( byte[] a, byte[] b, int length )
+        {
+        for ( int i = 0; i < length; i++ )
+            {
+            if ( a[i] != b[i] )
+                return false;
+            }
+        return true;
+        }
+    }
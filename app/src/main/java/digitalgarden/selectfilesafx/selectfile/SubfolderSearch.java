@@ -0,0 +1,275 @@
+package digitalgarden.selectfilesafx.selectfile;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Searches names in folder trees (eg. in the visible folder, or in each linked folder) - used by
+ * the "search in subfolders" mode.
+ *
+ * Trees are walked by TreeWalker, matches are kept as compact rows of their batches.
+ * Matches reach the list while the walk goes on:
+ * - first matches are published immediately, later ones not more frequently than
+ *   PUBLISH_INTERVAL_MS (matches arriving inside the interval are published at its end)
+ * - a new list is published only after the previous one was delivered (check delivered()), so
+ *   lists never queue up in front of the UI
+ * - matches are ranked: same name, name starting with the text, name containing the text; and
+ *   shallower matches come first inside each rank
+ * Walk stops after MAX_RESULTS matches.
+ *
+ * Search is a FolderLoader job: a new text starts a new search, and cancels the previous one.
+ */
+class SubfolderSearch
+    {
+    // Walk stops here - list and memory are bounded
+    static final int MAX_RESULTS = 1000;
+
+    // Partial lists are published not more frequently
+    private static final long PUBLISH_INTERVAL_MS = 150L;
+
+    private static final int RANK_SAME = 0;
+    private static final int RANK_PREFIX = 1;
+    private static final int RANK_CONTAINS = 2;
+
+    // One match with its ranking
+    private static class Match
+        {
+        final SelectFileEntry entry;
+        final int rank;
+        final int depth;
+
+        Match( SelectFileEntry entry, int rank, int depth )
+            {
+            this.entry = entry;
+            this.rank = rank;
+            this.depth = depth;
+            }
+        }
+
+    private final Context context;
+    private final ForkJoinPool pool;
+    private final String foldedText;
+    private final List<SelectFileEntry> commands;
+    private final Comparator<Match> comparator;
+
+    // Publishes matches skipped by the interval, when the interval ends
+    private final Handler handler = new Handler( Looper.getMainLooper() );
+    private final Runnable publishRunnable = new Runnable()
+        {
+        @Override
+        public void run()
+            {
+            synchronized ( matches )
+                {
+                publishScheduled = false;
+                publishIfReady();
+                }
+            }
+        };
+
+    // Following fields are guarded by matches
+    private final List<Match> matches = new ArrayList<>();
+    private FolderLoader.Publisher<List<SelectFileEntry>> publisher;
+    private boolean changed = false;       // new matches since last publish
+    private boolean inFlight = false;      // published list is not delivered yet
+    private long lastPublished = 0L;
+    private boolean publishScheduled = false;
+
+
+    /**
+     * @param context context to reach content resolver
+     * @param pool shared pool of the tree walks (check TreeWalker.createPool())
+     * @param foldedText text to find in the names (folded by CompactRows.foldCase())
+     * @param commands sorted command entries - results follow them
+     * @param sortMode order of the matches inside the same rank and depth
+     */
+    SubfolderSearch( Context context, ForkJoinPool pool, String foldedText,
+                     List<SelectFileEntry> commands, SelectFileEntry.SortMode sortMode )
+        {
+        this.context = context.getApplicationContext();
+        this.pool = pool;
+        this.foldedText = foldedText;
+        this.commands = commands;
+
+        final Comparator<SelectFileEntry> entryComparator = SelectFileEntry.getComparator( sortMode );
+        this.comparator = new Comparator<Match>()
+            {
+            @Override
+            public int compare( Match a, Match b )
+                {
+                if ( a.rank != b.rank )
+                    return a.rank - b.rank;
+                if ( a.depth != b.depth )
+                    return a.depth - b.depth;
+                return entryComparator.compare( a.entry, b.entry );
+                }
+            };
+        }
+
+    /**
+     * Walks the trees, one after the other. This is a blocking call, it should run in the
+     * background!
+     * @param roots folders to search in
+     * @param signal cancellation signal of the search
+     * @param publisher partial lists are published through it
+     * @return commands and the ranked matches
+     */
+    List<SelectFileEntry> search( List<DataFile> roots, CancellationSignal signal,
+                                  FolderLoader.Publisher<List<SelectFileEntry>> publisher )
+        {
+        synchronized ( matches )
+            {
+            this.publisher = publisher;
+            }
+
+        // Walk is stopped by the search, OR by MAX_RESULTS
+        final CancellationSignal walkSignal = new CancellationSignal();
+        signal.setOnCancelListener( new CancellationSignal.OnCancelListener()
+            {
+            @Override
+            public void onCancel()
+                {
+                walkSignal.cancel();
+                }
+            } );
+
+        TreeWalker walker = new TreeWalker( context, pool, walkSignal );
+        walker.setIncludeFilter( new TreeWalker.Filter()
+            {
+            @Override
+            public boolean accept( DataFile dataFile, int depth )
+                {
+                return rank( dataFile.getName() ) >= 0;
+                }
+            } );
+
+        TreeWalker.Visitor visitor = new TreeWalker.Visitor()
+            {
+            @Override
+            public void onBatch( DataFile folder, List<DataFile> batch, int depth )
+                {
+                CompactRows rows = CompactRows.fromBatch( context, folder, batch );
+                synchronized ( matches )
+                    {
+                    for ( int i = 0; i < rows.getCount() && matches.size() < MAX_RESULTS; i++ )
+                        matches.add( new Match( new SelectFileEntry( rows, i ),
+                                rank( batch.get(i).getName() ), depth ));
+                    changed = true;
+                    publishIfReady();
+
+                    if ( matches.size() >= MAX_RESULTS )
+                        walkSignal.cancel();
+                    }
+                }
+
+            @Override
+            public void onFolderFinished( DataFile folder, int depth )
+                {
+                // nothing to aggregate
+                }
+            };
+
+        try
+            {
+            for ( DataFile root : roots )
+                walker.walk( root, visitor );
+            }
+        catch ( OperationCanceledException oce )
+            {
+            if ( signal.isCanceled() )
+                throw oce;
+            // MAX_RESULTS was reached - matches are ready
+            }
+        finally
+            {
+            // Partial lists cannot follow the final one
+            synchronized ( matches )
+                {
+                this.publisher = null;
+                }
+            handler.removeCallbacks( publishRunnable );
+            }
+
+        synchronized ( matches )
+            {
+            return rankedEntries();
+            }
+        }
+
+    /**
+     * Published list was delivered (on the UI thread) - the next one can be sent
+     */
+    void delivered()
+        {
+        synchronized ( matches )
+            {
+            inFlight = false;
+            publishIfReady();
+            }
+        }
+
+    // Should be called inside synchronized ( matches )
+    private void publishIfReady()
+        {
+        if ( !changed || inFlight || publisher == null )
+            return; // delivered() calls it again
+
+        long wait = lastPublished + PUBLISH_INTERVAL_MS - SystemClock.uptimeMillis();
+        if ( wait > 0L )
+            {
+            // No new batch may come for a long time (slow provider)
+            if ( !publishScheduled )
+                {
+                publishScheduled = true;
+                handler.postDelayed( publishRunnable, wait );
+                }
+            return;
+            }
+
+        changed = false;
+        inFlight = true;
+        lastPublished = SystemClock.uptimeMillis();
+        publisher.publish( rankedEntries() );
+        }
+
+    // New list of commands and ranked matches; should be called inside synchronized ( matches )
+    private List<SelectFileEntry> rankedEntries()
+        {
+        List<Match> ranked = new ArrayList<>( matches );
+        Collections.sort( ranked, comparator );
+
+        List<SelectFileEntry> entries = new ArrayList<>( commands.size() + ranked.size() );
+        entries.addAll( commands );
+        for ( Match match : ranked )
+            entries.add( match.entry );
+        return entries;
+        }
+
+    /**
+     * Rank of the name (case is ignored) - no String is created
+     * @return RANK_... or -1 if name does not contain the text
+     */
+    private int rank( String name )
+        {
+        int length = foldedText.length();
+        if ( name.regionMatches( true, 0, foldedText, 0, length ))
+            return ( name.length() == length ) ? RANK_SAME : RANK_PREFIX;
+
+        for ( int from = 1; from <= name.length() - length; from++ )
+            {
+            if ( name.regionMatches( true, from, foldedText, 0, length ))
+                return RANK_CONTAINS;
+            }
+        return -1;
+        }
+    }
@@ -0,0 +1,610 @@
+package digitalgarden.selectfilesafx.selectfile;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.provider.DocumentsContract;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static digitalgarden.selectfilesafx.selectfile.FileOperations.closeSilently;
+
+/**
+ * Copies and moves files and folders (File and SAF, in any combination).
+ *
+ * The cheapest way is tried first:
+ * - move inside the same File filesystem: File.renameTo() - nothing is copied
+ * - copy or move inside the same provider: DocumentsContract.copyDocument() / moveDocument() -
+ *   provider does it (a move is usually instant), if it supports it (FLAG_SUPPORTS_COPY/MOVE)
+ * - otherwise: streaming copy. Tree is measured first (TreeWalker), then folders are created
+ *   one by one, and files are copied by COPY_THREADS at the same time, in blocks
+ *   (StreamCopier - kernel copy between regular files). Each target folder is listed at most
+ *   once, and each source folder is copied once (links to folders cannot create loops). Move
+ *   deletes the source at the end, only if everything was copied (symbolic links are removed,
+ *   their targets are kept).
+ *
+ * Progress is reported for each file and together. Transfer can be paused and resumed between
+ * blocks, and cancelled (OperationCanceledException is thrown then).
+ * copy() and move() are blocking calls, they should run in the background!
+ */
+class TransferEngine
+    {
+    /**
+     * Progress of the transfer - called on the worker threads!
+     */
+    interface ProgressListener
+        {
+        /**
+         * @param source file under copy
+         * @param copied bytes copied from this file
+         * @param size size of this file
+         */
+        void onFileProgress( DataFile source, long copied, long size );
+
+        /**
+         * @param copiedBytes bytes copied from all files
+         * @param totalBytes size of all files
+         * @param finishedFiles number of finished files
+         * @param totalFiles number of all files
+         * (All are 0 when a direct copy or move is finished - it is not measured.)
+         */
+        void onProgress( long copiedBytes, long totalBytes, int finishedFiles, int totalFiles );
+        }
+
+    // Files copied at the same time
+    private static final int COPY_THREADS = 3;
+
+    private final Context context;
+    private final ForkJoinPool pool;
+    private final ProgressListener listener;
+    private final CancellationSignal signal = new CancellationSignal();
+
+    // Guarded by this
+    private boolean paused = false;
+
+    // Totals of the streaming copy
+    private final AtomicLong copiedBytes = new AtomicLong();
+    private final AtomicInteger finishedFiles = new AtomicInteger();
+    private long totalBytes;
+    private int totalFiles;
+
+
+    /**
+     * @param context context to reach content resolver
+     * @param pool shared pool of the tree walks (check TreeWalker.createPool())
+     * @param listener progress of the transfer (can be null)
+     */
+    TransferEngine( Context context, ForkJoinPool pool, ProgressListener listener )
+        {
+        this.context = context.getApplicationContext();
+        this.pool = pool;
+        this.listener = listener;
+        }
+
+    /**
+     * Stops the transfer at the next block
+     */
+    synchronized void pause()
+        {
+        paused = true;
+        }
+
+    synchronized void resume()
+        {
+        paused = false;
+        notifyAll();
+        }
+
+    synchronized boolean isPaused()
+        {
+        return paused;
+        }
+
+    /**
+     * Cancels the transfer (paused transfer, too)
+     */
+    void cancel()
+        {
+        signal.cancel();
+        synchronized ( this )
+            {
+            notifyAll();
+            }
+        }
+
+    // Called between blocks: waits while paused, throws if cancelled
+    private void checkpoint()
+        {
+        synchronized ( this )
+            {
+            while ( paused && !signal.isCanceled() )
+                {
+                try
+                    {
+                    wait();
+                    }
+                catch ( InterruptedException e )
+                    {
+                    Thread.currentThread().interrupt();
+                    signal.cancel();
+                    }
+                }
+            }
+        signal.throwIfCanceled();
+        }
+
+    /**
+     * Copies source (file or folder with its contents) into targetFolder
+     * @throws IOException if it cannot be copied (eg. target already exists)
+     */
+    void copy( DataFile source, DataFile targetFolder ) throws IOException
+        {
+        transfer( source, targetFolder, false );
+        }
+
+    /**
+     * Moves source (file or folder with its contents) into targetFolder
+     * @throws IOException if it cannot be moved (eg. target already exists)
+     */
+    void move( DataFile source, DataFile targetFolder ) throws IOException
+        {
+        transfer( source, targetFolder, true );
+        }
+
+    private void transfer( DataFile source, DataFile targetFolder, boolean move ) throws IOException
+        {
+        checkpoint();
+        if ( !targetFolder.isDirectory() )
+            throw new IOException( "Target is not a folder: " + targetFolder.getKey() );
+        if ( isInside( targetFolder, source ))
+            throw new IOException( "Folder cannot be copied into itself: " + source.getKey() );
+
+        // Direct transfer needs no listing - tree is not measured for it
+        if ( move ? moveDirectly( source, targetFolder ) : copyDirectly( source, targetFolder ))
+            {
+            reportDone();
+            return;
+            }
+
+        // Streaming copy: everything is measured first
+        measure( source );
+
+        ExecutorService executor = Executors.newFixedThreadPool( COPY_THREADS );
+        List<Future<?>> futures = new ArrayList<>();
+        try
+            {
+            // Target folder is listed only once - new names are added to this snapshot
+            Set<String> visited = new HashSet<>();
+            visited.add( identity( source ));
+            copyTree( source, targetFolder, listNames( targetFolder ), visited, executor, futures );
+            for ( Future<?> future : futures )
+                {
+                try
+                    {
+                    future.get();
+                    }
+                catch ( InterruptedException e )
+                    {
+                    Thread.currentThread().interrupt();
+                    signal.cancel();
+                    signal.throwIfCanceled();
+                    }
+                catch ( ExecutionException e )
+                    {
+                    if ( e.getCause() instanceof OperationCanceledException )
+                        throw (OperationCanceledException) e.getCause();
+                    throw new IOException( "Copy failed: " + e.getCause(), e.getCause() );
+                    }
+                }
+            }
+        finally
+            {
+            executor.shutdownNow();
+            }
+
+        if ( move && !delete( source ))
+            Log.w( "TRANSFER", "Source was copied, but cannot be deleted: " + source.getKey() );
+        }
+
+    /**
+     * True, if folder is the source, or it is inside the source. Files are compared by their
+     * canonical path, documents by their document id (the same document can be reached through
+     * different trees).
+     */
+    private boolean isInside( DataFile folder, DataFile source )
+        {
+        if ( folder.isFileSystem() || source.isFileSystem() )
+            {
+            if ( !folder.isFileSystem() || !source.isFileSystem() )
+                return false;
+            try
+                {
+                String sourcePath = source.getFile().getCanonicalPath();
+                String folderPath = folder.getFile().getCanonicalPath();
+                return folderPath.equals( sourcePath ) ||
+                        folderPath.startsWith( sourcePath + File.separator );
+                }
+            catch ( IOException e )
+                {
+                return true; // cannot be checked - it is not risked
+                }
+            }
+
+        String sourceId = source.getDocumentId();
+        if ( !sameProvider( source, folder ) || sourceId == null )
+            return false;
+
+        // Path of the folder from the root of its tree
+        if ( Build.VERSION.SDK_INT >= Build.VERSION_CODES.O )
+            {
+            try
+                {
+                DocumentsContract.Path path = DocumentsContract.findDocumentPath(
+                        context.getContentResolver(), folder.getUri( context ));
+                if ( path != null && path.getPath().contains( sourceId ))
+                    return true;
+                }
+            catch ( Exception e )
+                {
+                Log.d( "TRANSFER", "Path of " + folder.getKey() + " cannot be found: " + e );
+                }
+            }
+
+        // Parents known by the listing (eg. above the root of the tree)
+        for ( DataFile ancestor = folder; ancestor != null; ancestor = ancestor.getKnownParentFolder() )
+            {
+            if ( sourceId.equals( ancestor.getDocumentId() ))
+                return true;
+            }
+        return false;
+        }
+
+    /**
+     * Move without copy: rename inside the same File filesystem, or provider's move
+     * @return true if it was moved
+     */
+    private boolean moveDirectly( DataFile source, DataFile targetFolder ) throws IOException
+        {
+        if ( source.isFileSystem() && targetFolder.isFileSystem() )
+            {
+            File target = new File( targetFolder.getFile(), source.getName() );
+            if ( target.exists() )
+                throw new IOException( "Target already exists: " + target );
+            // Fails between different filesystems - copy is needed then
+            return source.getFile().renameTo( target );
+            }
+
+        DataFile sourceParent = source.getParentFolder();
+        if ( !sameProvider( source, targetFolder ) || sourceParent == null || sourceParent.isFileSystem() ||
+                !supports( source, DocumentsContract.Document.FLAG_SUPPORTS_MOVE ))
+            return false;
+
+        try
+            {
+            return DocumentsContract.moveDocument( context.getContentResolver(),
+                    source.getUri( context ), sourceParent.getUri( context ),
+                    targetFolder.getUri( context )) != null;
+            }
+        catch ( Exception e )
+            {
+            Log.d( "TRANSFER", "Provider cannot move " + source.getKey() + ": " + e );
+            return false;
+            }
+        }
+
+    /**
+     * Copy by the provider
+     * @return true if it was copied
+     */
+    private boolean copyDirectly( DataFile source, DataFile targetFolder )
+        {
+        if ( !sameProvider( source, targetFolder ) ||
+                !supports( source, DocumentsContract.Document.FLAG_SUPPORTS_COPY ))
+            return false;
+
+        try
+            {
+            return DocumentsContract.copyDocument( context.getContentResolver(),
+                    source.getUri( context ), targetFolder.getUri( context )) != null;
+            }
+        catch ( Exception e )
+            {
+            Log.d( "TRANSFER", "Provider cannot copy " + source.getKey() + ": " + e );
+            return false;
+            }
+        }
+
+    private static boolean sameProvider( DataFile source, DataFile targetFolder )
+        {
+        if ( source.isFileSystem() || targetFolder.isFileSystem() )
+            return false;
+        String authority = Uri.parse( source.getKey() ).getAuthority();
+        return authority != null && authority.equals( Uri.parse( targetFolder.getKey() ).getAuthority() );
+        }
+
+    // Flags are known only for children listed by query - others are tried
+    private static boolean supports( DataFile source, int flag )
+        {
+        return source.getFlags() == 0 || ( source.getFlags() & flag ) != 0;
+        }
+
+    // Totals of the streaming copy
+    private void measure( DataFile source )
+        {
+        copiedBytes.set( 0L );
+        finishedFiles.set( 0 );
+        if ( !source.isDirectory() )
+            {
+            totalBytes = source.length();
+            totalFiles = 1;
+            return;
+            }
+
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicInteger files = new AtomicInteger();
+        new TreeWalker( context, pool, signal ).walk( source, new TreeWalker.Visitor()
+            {
+            @Override
+            public void onBatch( DataFile folder, List<DataFile> batch, int depth )
+                {
+                for ( DataFile child : batch )
+                    {
+                    if ( !child.isDirectory() )
+                        {
+                        bytes.addAndGet( child.getAttributes().size );
+                        files.incrementAndGet();
+                        }
+                    }
+                }
+
+            @Override
+            public void onFolderFinished( DataFile folder, int depth )
+                {
+                // only totals are needed
+                }
+            } );
+        totalBytes = bytes.get();
+        totalFiles = files.get();
+        }
+
+    // Names of a folder by ONE listing
+    private Set<String> listNames( DataFile folder )
+        {
+        Set<String> names = new HashSet<>();
+        DataFile.Listing listing = folder.openListing( context, signal, DataFile.DEFAULT_BATCH_SIZE );
+        try
+            {
+            List<DataFile> batch;
+            while ( (batch = listing.nextBatch()) != null )
+                {
+                for ( DataFile child : batch )
+                    names.add( child.getName() );
+                }
+            }
+        finally
+            {
+            listing.close();
+            }
+        return names;
+        }
+
+    /**
+     * Folders are created here (parent before its children), files are copied by the executor
+     * @param targetNames names inside targetFolder (listing snapshot, new names are added)
+     * @param visited identity of the copied source folders and of the new folders - each folder
+     *                is copied once, like in TreeWalker (linked folders cannot create loops, new
+     *                folders inside the source are not copied again)
+     */
+    private void copyTree( DataFile source, final DataFile targetFolder, Set<String> targetNames,
+                           Set<String> visited, final ExecutorService executor,
+                           final List<Future<?>> futures ) throws IOException
+        {
+        checkpoint();
+        if ( !targetNames.add( source.getName() ))
+            throw new IOException( "Target already exists: " + source.getName() );
+
+        if ( !source.isDirectory() )
+            {
+            final DataFile file = source;
+            futures.add( executor.submit( new Callable<Void>()
+                {
+                @Override
+                public Void call() throws IOException
+                    {
+                    copyFile( file, targetFolder );
+                    return null;
+                    }
+                } ));
+            return;
+            }
+
+        DataFile newFolder = targetFolder.createFolder( source.getName() );
+        if ( newFolder == null )
+            throw new IOException( "Folder cannot be created: " + source.getName() );
+        visited.add( identity( newFolder ));
+
+        List<DataFile> children = new ArrayList<>();
+        DataFile.Listing listing = source.openListing( context, signal, DataFile.DEFAULT_BATCH_SIZE );
+        try
+            {
+            List<DataFile> batch;
+            while ( (batch = listing.nextBatch()) != null )
+                {
+                for ( DataFile child : batch )
+                    {
+                    if ( !child.isDirectory() || visited.add( identity( child )))
+                        children.add( child );
+                    }
+                }
+            }
+        finally
+            {
+            listing.close();
+            }
+
+        // New folder is empty
+        Set<String> newNames = new HashSet<>();
+        for ( DataFile child : children )
+            copyTree( child, newFolder, newNames, visited, executor, futures );
+        }
+
+    // Identity of a file or document: canonical path, or authority and document id
+    private static String identity( DataFile dataFile )
+        {
+        File file = dataFile.getFile();
+        if ( file != null )
+            {
+            try
+                {
+                return file.getCanonicalPath();
+                }
+            catch ( IOException e )
+                {
+                return file.getAbsolutePath();
+                }
+            }
+        return Uri.parse( dataFile.getKey() ).getAuthority() + "/" + dataFile.getDocumentId();
+        }
+
+    private void copyFile( final DataFile source, DataFile targetFolder ) throws IOException
+        {
+        // Same mime type: provider adds no extension
+        String mimeType = source.getMimeType();
+        DataFile target = targetFolder.createFile( source.getName(),
+                ( mimeType != null ) ? mimeType : "application/octet-stream" );
+        if ( target == null )
+            throw new IOException( "File cannot be created: " + source.getName() );
+
+        final long size = source.length();
+        InputStream input = null;
+        OutputStream output = null;
+        try
+            {
+            input = openInput( source );
+            output = openOutput( target );
+            StreamCopier.copy( input, output, Long.MAX_VALUE, new StreamCopier.OnBlockListener()
+                {
+                private long copied = 0L;
+
+                @Override
+                public void onBlock( long bytes )
+                    {
+                    copied += bytes;
+                    long all = copiedBytes.addAndGet( bytes );
+                    if ( listener != null )
+                        {
+                        listener.onFileProgress( source, copied, size );
+                        listener.onProgress( all, totalBytes, finishedFiles.get(), totalFiles );
+                        }
+                    checkpoint();
+                    }
+                } );
+            }
+        finally
+            {
+            closeSilently( output );
+            closeSilently( input );
+            }
+
+        int finished = finishedFiles.incrementAndGet();
+        if ( listener != null )
+            listener.onProgress( copiedBytes.get(), totalBytes, finished, totalFiles );
+        }
+
+    private InputStream openInput( DataFile dataFile ) throws IOException
+        {
+        if ( dataFile.isFileSystem() )
+            return new FileInputStream( dataFile.getFile() );
+
+        InputStream stream = context.getContentResolver().openInputStream( dataFile.getUri( context ));
+        if ( stream == null )
+            throw new IOException( "Cannot read " + dataFile.getKey() );
+        return stream;
+        }
+
+    private OutputStream openOutput( DataFile dataFile ) throws IOException
+        {
+        if ( dataFile.isFileSystem() )
+            return new FileOutputStream( dataFile.getFile() );
+
+        OutputStream stream = context.getContentResolver().openOutputStream( dataFile.getUri( context ), "wt" );
+        if ( stream == null )
+            throw new IOException( "Cannot write " + dataFile.getKey() );
+        return stream;
+        }
+
+    // Source of a move is deleted after the copy
+    private boolean delete( DataFile dataFile )
+        {
+        if ( dataFile.isFileSystem() )
+            return deleteFile( dataFile.getFile() );
+
+        try
+            {
+            // Provider deletes folders with their contents
+            return DocumentsContract.deleteDocument( context.getContentResolver(), dataFile.getUri( context ));
+            }
+        catch ( Exception e )
+            {
+            Log.w( "TRANSFER", "Cannot delete " + dataFile.getKey() + ": " + e );
+            return false;
+            }
+        }
+
+    private static boolean deleteFile( File file )
+        {
+        // Link is removed, its target is not touched (it can be outside the tree)
+        if ( !isSymbolicLink( file ))
+            {
+            File[] children = file.listFiles();
+            if ( children != null )
+                {
+                for ( File child : children )
+                    deleteFile( child );
+                }
+            }
+        return file.delete();
+        }
+
+    private static boolean isSymbolicLink( File file )
+        {
+        try
+            {
+            return OsConstants.S_ISLNK( Os.lstat( file.getPath() ).st_mode );
+            }
+        catch ( ErrnoException e )
+            {
+            return true; // not known - nothing is deleted through it
+            }
+        }
+
+    // Direct copy or move is finished at once - its tree is not measured, there are no totals
+    private void reportDone()
+        {
+        if ( listener != null )
+            listener.onProgress( 0L, 0L, 0, 0 );
+        }
+    }
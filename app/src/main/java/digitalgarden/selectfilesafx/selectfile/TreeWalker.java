@@ -0,0 +1,264 @@
+package digitalgarden.selectfilesafx.selectfile;
+
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks a folder tree (File or SAF) in parallel.
+ *
+ * Each folder is one ForkJoin task: its children are read batch by batch (DataFile.Listing),
+ * subfolders are forked immediately, so idle threads steal them - deep and wide trees are
+ * walked by all threads. Results are emitted as they are found (Visitor.onBatch()), so search,
+ * size calculation or copy can work on them while the walk goes on.
+ *
+ * Walks run on a shared pool (check createPool()) - walks of each row and search would not
+ * need their own threads. Several walkers can use the same pool at the same time.
+ *
+ * Options (set them before walk()):
+ * - max depth: children of the root are on depth 1 (default: no limit)
+ * - include filter: only accepted children are emitted (default: all)
+ * - descend filter: only accepted folders are walked (default: all)
+ *
+ * Each folder is walked only once: File folders are identified by their canonical path
+ * (symbolic links cannot create loops), SAF folders by their document uri.
+ * Walk stops, when its signal is cancelled - walk() throws OperationCanceledException then.
+ * Parallel queries cannot share one signal (it reaches only one remote), so each listing gets
+ * its own signal, and the walk's signal cancels all of them (by its OnCancelListener - signal
+ * of a running walk should have no other listener).
+ */
+class TreeWalker
+    {
+    /**
+     * Decides about a child of a folder
+     */
+    interface Filter
+        {
+        /**
+         * @param dataFile child (with attribute snapshot)
+         * @param depth depth of the child (children of the root are on depth 1)
+         */
+        boolean accept( DataFile dataFile, int depth );
+        }
+
+    /**
+     * Receives the results. Methods are called on the worker threads - in parallel!
+     */
+    interface Visitor
+        {
+        /**
+         * Accepted children of a folder - a folder can send several batches
+         * @param folder parent of the batch
+         * @param batch children accepted by the include filter
+         * @param depth depth of the children
+         */
+        void onBatch( DataFile folder, List<DataFile> batch, int depth );
+
+        /**
+         * Folder and all its walked subfolders are finished. Subfolders are always finished
+         * before their parent, so results can be aggregated bottom-up.
+         * @param folder finished folder
+         * @param depth depth of the folder (root is on depth 0)
+         */
+        void onFolderFinished( DataFile folder, int depth );
+        }
+
+    private static final Filter ACCEPT_ALL = new Filter()
+        {
+        @Override
+        public boolean accept( DataFile dataFile, int depth )
+            {
+            return true;
+            }
+        };
+
+    private final Context context;
+    private final ForkJoinPool pool;
+    private final CancellationSignal signal;
+
+    private int maxDepth = Integer.MAX_VALUE;
+    private Filter includeFilter = ACCEPT_ALL;
+    private Filter descendFilter = ACCEPT_ALL;
+    private int batchSize = DataFile.DEFAULT_BATCH_SIZE;
+
+    // Identity of the walked folders - loop protection
+    private final Set<String> visited =
+            Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+    // Signals of the running listings - cancelled together with the walk
+    private final Set<CancellationSignal> listingSignals =
+            Collections.newSetFromMap( new ConcurrentHashMap<CancellationSignal, Boolean>() );
+
+
+    /**
+     * Pool for the walkers - it should be shut down by its owner (eg. when activity is destroyed)
+     */
+    static ForkJoinPool createPool()
+        {
+        return new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+        }
+
+    /**
+     * @param context context to reach content resolver
+     * @param pool shared pool of the walks (check createPool())
+     * @param signal cancellation signal of the walk (cannot be null)
+     */
+    TreeWalker( Context context, ForkJoinPool pool, CancellationSignal signal )
+        {
+        this.context = context.getApplicationContext();
+        this.pool = pool;
+        this.signal = signal;
+        }
+
+    void setMaxDepth( int maxDepth )
+        {
+        this.maxDepth = maxDepth;
+        }
+
+    void setIncludeFilter( Filter includeFilter )
+        {
+        this.includeFilter = ( includeFilter == null ) ? ACCEPT_ALL : includeFilter;
+        }
+
+    void setDescendFilter( Filter descendFilter )
+        {
+        this.descendFilter = ( descendFilter == null ) ? ACCEPT_ALL : descendFilter;
+        }
+
+    void setBatchSize( int batchSize )
+        {
+        this.batchSize = Math.max( 1, batchSize );
+        }
+
+    /**
+     * Walks the tree below root. This is a blocking call, it should run in the background!
+     * Root itself is not emitted, but it is finished last. One walker runs one walk at a time.
+     * @param root folder to walk
+     * @param visitor receives the results
+     * @throws java.util.concurrent.RejectedExecutionException if pool is already shut down
+     */
+    void walk( DataFile root, Visitor visitor )
+        {
+        visited.clear();
+        visited.add( identity( root ));
+
+        signal.setOnCancelListener( new CancellationSignal.OnCancelListener()
+            {
+            @Override
+            public void onCancel()
+                {
+                for ( CancellationSignal listingSignal : listingSignals )
+                    listingSignal.cancel();
+                }
+            } );
+        try
+            {
+            pool.invoke( new FolderTask( root, 0, visitor ));
+            }
+        finally
+            {
+            signal.setOnCancelListener( null );
+            }
+        }
+
+    /**
+     * One folder: its children are emitted, its subfolders are forked
+     */
+    private class FolderTask extends RecursiveAction
+        {
+        private final DataFile folder;
+        private final int depth;
+        private final Visitor visitor;
+
+        FolderTask( DataFile folder, int depth, Visitor visitor )
+            {
+            this.folder = folder;
+            this.depth = depth;
+            this.visitor = visitor;
+            }
+
+        @Override
+        protected void compute()
+            {
+            signal.throwIfCanceled();
+
+            int childDepth = depth + 1;
+            List<FolderTask> subtasks = new ArrayList<>();
+
+            // Own signal: it is registered before the walk's signal is checked, so no cancel is lost
+            CancellationSignal listingSignal = new CancellationSignal();
+            listingSignals.add( listingSignal );
+            if ( signal.isCanceled() )
+                listingSignal.cancel();
+
+            DataFile.Listing listing = null;
+            try
+                {
+                listing = folder.openListing( context, listingSignal, batchSize );
+                List<DataFile> batch;
+                while ( (batch = listing.nextBatch()) != null )
+                    {
+                    List<DataFile> accepted = new ArrayList<>( batch.size() );
+                    for ( DataFile child : batch )
+                        {
+                        if ( includeFilter.accept( child, childDepth ))
+                            accepted.add( child );
+
+                        if ( child.isDirectory() && childDepth < maxDepth &&
+                                descendFilter.accept( child, childDepth ) &&
+                                visited.add( identity( child )))
+                            {
+                            FolderTask subtask = new FolderTask( child, childDepth, visitor );
+                            subtask.fork(); // idle threads can steal it
+                            subtasks.add( subtask );
+                            }
+                        }
+
+                    if ( !accepted.isEmpty() )
+                        visitor.onBatch( folder, accepted, childDepth );
+                    }
+                }
+            finally
+                {
+                if ( listing != null )
+                    listing.close();
+                listingSignals.remove( listingSignal );
+                }
+
+            for ( FolderTask subtask : subtasks )
+                subtask.join();
+
+            visitor.onFolderFinished( folder, depth );
+            }
+        }
+
+    /**
+     * Identity of a folder: canonical path of File-s (links are resolved), uri of documents
+     */
+    private static String identity( DataFile folder )
+        {
+        File file = folder.getFile();
+        if ( file != null )
+            {
+            try
+                {
+                return file.getCanonicalPath();
+                }
+            catch ( IOException e )
+                {
+                Log.w( "TREEWALKER", "Canonical path of " + file + " cannot be read: " + e );
+                }
+            }
+        return folder.getKey();
+        }
+    }